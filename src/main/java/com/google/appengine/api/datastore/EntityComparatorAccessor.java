@@ -12,4 +12,14 @@ public class EntityComparatorAccessor
 	{
 		return new EntityComparator(sorts);
 	}
+
+	// entities that were not read from the datastore cannot be compared without their proto
+	public static Entity comparableEntity(Entity entity)
+	{
+		if (entity.getEntityProto() == null)
+		{
+			entity.setEntityProto(EntityTranslator.convertToPb(entity));
+		}
+		return entity;
+	}
 }
@@ -0,0 +1,23 @@
+package com.google.code.twig;
+
+import java.util.List;
+
+import com.google.code.twig.FindCommand.RootFindCommand;
+
+/**
+ * Receives the results of a find one chunk at a time so that very large
+ * results can be processed without holding them all in memory.
+ *
+ * @see RootFindCommand#forEach(int, ChunkVisitor)
+ */
+public interface ChunkVisitor<T>
+{
+	/**
+	 * @param chunk The next results which are disassociated after this returns
+	 * @param cursor A web-safe cursor after this chunk to pass to
+	 *            {@link RootFindCommand#continueFrom(String)} or null if the
+	 *            results have no cursor
+	 * @return false to stop before the next chunk is fetched
+	 */
+	boolean visit(List<T> chunk, String cursor);
+}
@@ -2,6 +2,7 @@ package com.google.code.twig;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.FetchOptions;
@@ -17,8 +18,20 @@ import com.google.code.twig.LoadCommand.CommonDecodeCommand;
  */
 public interface FindCommand
 {
-	// TODO also support AND with a counting set
-	enum MergeOperator { OR };
+	/**
+	 * OR returns results from any branch. AND returns only results from every
+	 * branch by intersecting keys-only queries on the client so no composite
+	 * indexes are needed. Only the root command can merge with AND.
+	 */
+	enum MergeOperator { OR, AND };
+	
+	/**
+	 * How the entities of query results are read. QUERY returns the entities
+	 * with the query results. CACHE runs a keys-only query and gets the entities
+	 * from memory, memcache and then the datastore. AUTO uses CACHE for kinds
+	 * that are mostly found in the cache.
+	 */
+	enum FetchMode { QUERY, CACHE, AUTO };
 	
 	<T> RootFindCommand<T> type(Class<? extends T> type);
 	
@@ -52,6 +65,12 @@ public interface FindCommand
 	
 	interface RootFindCommand<T> extends CommonFindCommand<RootFindCommand<T>>, CommandTerminator<QueryResultIterator<T>>
 	{
+		/**
+		 * Starts the query without waiting for the first batch of results
+		 */
+		@Override
+		Future<QueryResultIterator<T>> later();
+		
 		// methods that have side effects
 		
 		/**
@@ -87,6 +106,15 @@ public interface FindCommand
 		 */
 		RootFindCommand<T> continueFrom(Cursor cursor);
 		
+		/**
+		 * Continues from a web-safe cursor string which can be from either
+		 * {@link Cursor#toWebSafeString()} or from the results of a merged find.
+		 * 
+		 * @param cursor A web-safe cursor string
+		 * @return <code>this</code> for method chaining
+		 */
+		RootFindCommand<T> continueFrom(String cursor);
+		
 		/**
 		 * @param cursor set as {@link FetchOptions#endCursor(Cursor)}
 		 * @return <code>this</code> for method chaining
@@ -102,11 +130,70 @@ public interface FindCommand
 
 		RootFindCommand<T> remember();
 		
+		/**
+		 * @param mode How to read the entities of the results
+		 * @return <code>this</code> for method chaining
+		 */
+		RootFindCommand<T> fetchMode(FetchMode mode);
+		
+		/**
+		 * Only read the values of these fields from the index. The results are
+		 * partial instances which are not activated so they cannot be updated
+		 * until they are activated. Instances that are already loaded are
+		 * returned unchanged.
+		 * 
+		 * @param fields The names of indexed class fields
+		 * @return <code>this</code> for method chaining
+		 */
+		RootFindCommand<T> project(String... fields);
+		
+		/**
+		 * Only read the values of these fields from the index and decode them
+		 * into instances of another type with fields of the same names. These
+		 * instances are not associated with the datastore.
+		 * 
+		 * @param into The type to create for each result
+		 * @param fields The names of indexed class fields
+		 * @return A command that returns instances of the projection type
+		 */
+		<P> RootFindCommand<P> project(Class<P> into, String... fields);
+		
+		/**
+		 * Resolves the fields of this find so it can be run again with only
+		 * the values of its parameters. Merged finds cannot be prepared.
+		 * 
+		 * @return A template that can be kept and shared by threads
+		 */
+		FindTemplate<T> prepare();
+		
 		// terminating methods
 		CommandTerminator<Integer> returnCount();
 		CommandTerminator<List<T>> returnAll();
 		CommandTerminator<T> returnUnique();
 		
+		/**
+		 * Fetches and decodes the results in chunks of a fixed size and gives
+		 * each chunk to the visitor. The instances of a chunk are disassociated
+		 * once it has been visited so memory use does not grow with the number
+		 * of results. Results are never remembered.
+		 * 
+		 * @param size The number of results in each chunk
+		 * @param visitor Receives each chunk and the cursor after it
+		 */
+		void forEach(int size, ChunkVisitor<T> visitor);
+		
+		/**
+		 * Applies the mutation to every result in chunks and updates the
+		 * changed instances of each chunk with one bulk put. Several puts are
+		 * sent at the same time unless the type is versioned or cached.
+		 * 
+		 * @param size The number of results in each chunk
+		 * @param mutation Changes each result and receives the cursor after
+		 *            each chunk has been stored
+		 * @return The number of updated instances
+		 */
+		int mutate(int size, Mutation<? super T> mutation);
+		
 		<P> CommandTerminator<Iterator<P>> returnParents();
 		<P> CommandTerminator<ParentsCommand<P>> returnParentsCommand();
 	}
@@ -0,0 +1,27 @@
+package com.google.code.twig;
+
+import java.util.Map;
+
+import com.google.code.twig.FindCommand.RootFindCommand;
+
+/**
+ * A find with its fields already resolved to stored properties and its other
+ * filter values already encoded. Templates do not change so they can be kept
+ * and shared by threads to create find commands for any datastore.
+ *
+ * @param <T> The type of the instances that will be found
+ */
+public interface FindTemplate<T>
+{
+	/**
+	 * @param datastore The datastore that will run the find
+	 * @param values The value of every {@link Parameter} by name
+	 * @return A new find command with the parameters set
+	 */
+	RootFindCommand<T> bind(ObjectDatastore datastore, Map<String, ?> values);
+
+	/**
+	 * Binds the only parameter of the template
+	 */
+	RootFindCommand<T> bind(ObjectDatastore datastore, String name, Object value);
+}
@@ -41,6 +41,12 @@ public interface LoadCommand
 
 	interface SingleTypedLoadCommand<T> extends CommonLoadCommand<SingleTypedLoadCommand<T>>, CommandTerminator<T>
 	{
+		/**
+		 * Starts an async get unless the instance is already associated. The entity
+		 * is decoded by the thread that gets the result from the future.
+		 */
+		@Override
+		Future<T> later();
 	}
 
 	interface SingleUntypedLoadCommand extends CommonDecodeCommand<SingleUntypedLoadCommand>
@@ -74,8 +80,11 @@ public interface LoadCommand
 		 * the response will not be returned to the client until the command is finished so that 
 		 * any exceptions can be displayed to the client.</p>
 		 * 
+		 * <p>Entities are decoded by the thread that gets the result from the future.</p>
+		 * 
 		 * @return Future used to get instances in same order as ids
 		 */
+		@Override
 		Future<Map<Object, T>> later();
 	}
 }
@@ -0,0 +1,28 @@
+package com.google.code.twig;
+
+import com.google.code.twig.FindCommand.RootFindCommand;
+
+/**
+ * Changes each result of a find so that the changed instances can be
+ * updated in bulk.
+ *
+ * @see RootFindCommand#mutate(int, Mutation)
+ */
+public abstract class Mutation<T>
+{
+	/**
+	 * @param instance The next result to change
+	 * @return true if the instance was changed and must be updated
+	 */
+	public abstract boolean mutate(T instance);
+
+	/**
+	 * Called once the changes of every result before the cursor are stored.
+	 * Override to save the cursor so a failed job can continue from it.
+	 *
+	 * @param cursor A web-safe cursor to pass to {@link RootFindCommand#continueFrom(String)}
+	 */
+	public void checkpoint(String cursor)
+	{
+	}
+}
@@ -221,10 +221,31 @@ public interface ObjectDatastore extends Activator
 
 	void startBatchMode();
 
+	/**
+	 * Collects puts and deletes until {@link #flushBatchedOperations()} or
+	 * {@link #stopBatchMode()} sends them to the datastore in bulk.
+	 * 
+	 * @param allocateIds
+	 *            When true new instances with no id are given an allocated id
+	 *            so their complete Key is known before the batch is flushed
+	 */
+	void startBatchMode(boolean allocateIds);
+
 	void stopBatchMode();
 
 	void flushBatchedOperations();
 
+	/**
+	 * Ends batch mode without sending any of the collected operations to the
+	 * datastore.
+	 */
+	void discardBatchedOperations();
+
+	/**
+	 * @return true between {@link #startBatchMode()} and the end of batch mode
+	 */
+	boolean isBatching();
+
 	void setAutoflushThreshold(int threshold);
 
 	DatastoreService getDefaultService();
@@ -0,0 +1,35 @@
+package com.google.code.twig;
+
+/**
+ * A named filter value that is only given when a {@link FindTemplate} is
+ * bound so the same template can be used with different values.
+ */
+public final class Parameter
+{
+	private final String name;
+
+	private Parameter(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @param name The name used to bind the value
+	 * @return A placeholder to use as a filter value
+	 */
+	public static Parameter param(String name)
+	{
+		return new Parameter(name);
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return ":" + name;
+	}
+}
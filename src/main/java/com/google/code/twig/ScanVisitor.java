@@ -0,0 +1,21 @@
+package com.google.code.twig;
+
+import java.util.List;
+
+import com.google.code.twig.standard.KindScan;
+
+/**
+ * Receives the instances of one shard of a {@link KindScan}. A single visitor
+ * is used by every shard at the same time so it must be thread safe.
+ */
+public interface ScanVisitor<T>
+{
+	/**
+	 * A chunk after the last checkpoint is visited again if the scan is resumed
+	 * after a failure so changes made here should be idempotent.
+	 *
+	 * @param chunk The next instances of the shard in key order
+	 * @param datastore The datastore of the shard which loaded the chunk
+	 */
+	void visit(List<T> chunk, ObjectDatastore datastore);
+}
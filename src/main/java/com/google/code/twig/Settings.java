@@ -4,6 +4,7 @@ import java.util.concurrent.TimeUnit;
 
 import com.google.appengine.api.datastore.ReadPolicy.Consistency;
 import com.google.code.twig.LoadCommand.CacheMode;
+import com.google.common.base.Objects;
 
 public final class Settings implements Cloneable
 {
@@ -12,6 +13,11 @@ public final class Settings implements Cloneable
 	private boolean crossGroupTransactions = true;
 	private CacheMode cacheMode = CacheMode.AUTO;
 	private int retries = 1;
+	private int pendingBatches = 10;
+	private boolean dirtyChecking;
+	private int transactionAttempts = 1;
+	private long transactionBackoff = 100;
+	private Long transactionBudget;
 	
 	public static class Builder
 	{
@@ -24,14 +30,7 @@ public final class Settings implements Cloneable
 		
 		public Builder(Settings settings)
 		{
-			try
-			{
-				this.settings = (Settings) settings.clone();
-			}
-			catch (CloneNotSupportedException e)
-			{
-				throw new RuntimeException(e);
-			}
+			this.settings = settings.copy();
 		}
 
 		public Builder deadline(long value, TimeUnit unit)
@@ -58,6 +57,56 @@ public final class Settings implements Cloneable
 			return this;
 		}
 
+		/**
+		 * @param batches The most bulk operations to send before waiting for
+		 *            the first to complete
+		 */
+		public Builder pendingBatches(int batches)
+		{
+			settings.pendingBatches = batches;
+			return this;
+		}
+
+		/**
+		 * @param dirty Remember the encoded state of activated instances so 
+		 *            updates skip instances which have not changed
+		 */
+		public Builder dirtyChecking(boolean dirty)
+		{
+			settings.dirtyChecking = dirty;
+			return this;
+		}
+
+		/**
+		 * @param attempts The most times transact will perform its work when
+		 *            the commit fails because of contention
+		 */
+		public Builder transactionAttempts(int attempts)
+		{
+			settings.transactionAttempts = attempts;
+			return this;
+		}
+
+		/**
+		 * @param value The delay before the first retry which doubles for
+		 *            each following retry with some random variation
+		 */
+		public Builder transactionBackoff(long value, TimeUnit unit)
+		{
+			settings.transactionBackoff = unit.toMillis(value);
+			return this;
+		}
+
+		/**
+		 * @param value The total time after which a failed transaction is
+		 *            no longer retried
+		 */
+		public Builder transactionBudget(long value, TimeUnit unit)
+		{
+			settings.transactionBudget = unit.toMillis(value);
+			return this;
+		}
+
 		public Builder crossGroupTransactions(boolean xgt)
 		{
 			settings.crossGroupTransactions = xgt;
@@ -66,7 +115,8 @@ public final class Settings implements Cloneable
 		
 		public Settings build()
 		{
-			return settings;
+			// copy so later changes to this builder do not alter the result
+			return settings.copy();
 		}
 	}
 	
@@ -99,11 +149,48 @@ public final class Settings implements Cloneable
 		return new Builder(settings);
 	}
 
+	private Settings copy()
+	{
+		try
+		{
+			return (Settings) clone();
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
 	public int getRetries()
 	{
 		return retries;
 	}
 	
+	public int getPendingBatches()
+	{
+		return pendingBatches;
+	}
+	
+	public boolean isDirtyChecking()
+	{
+		return dirtyChecking;
+	}
+	
+	public int getTransactionAttempts()
+	{
+		return transactionAttempts;
+	}
+	
+	public long getTransactionBackoff()
+	{
+		return transactionBackoff;
+	}
+	
+	public Long getTransactionBudget()
+	{
+		return transactionBudget;
+	}
+	
 	public CacheMode getCacheMode()
 	{
 		return cacheMode;
@@ -113,4 +200,56 @@ public final class Settings implements Cloneable
 	{
 		return crossGroupTransactions;
 	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((deadline == null) ? 0 : deadline.hashCode());
+		result = prime * result + ((consistency == null) ? 0 : consistency.hashCode());
+		result = prime * result + (crossGroupTransactions ? 1231 : 1237);
+		result = prime * result + ((cacheMode == null) ? 0 : cacheMode.hashCode());
+		result = prime * result + retries;
+		result = prime * result + pendingBatches;
+		result = prime * result + (dirtyChecking ? 1231 : 1237);
+		result = prime * result + transactionAttempts;
+		result = prime * result + (int) (transactionBackoff ^ (transactionBackoff >>> 32));
+		result = prime * result + ((transactionBudget == null) ? 0 : transactionBudget.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+		if (obj == null || getClass() != obj.getClass())
+		{
+			return false;
+		}
+		Settings other = (Settings) obj;
+		return Objects.equal(deadline, other.deadline)
+				&& consistency == other.consistency
+				&& crossGroupTransactions == other.crossGroupTransactions
+				&& cacheMode == other.cacheMode
+				&& retries == other.retries
+				&& pendingBatches == other.pendingBatches
+				&& dirtyChecking == other.dirtyChecking
+				&& transactionAttempts == other.transactionAttempts
+				&& transactionBackoff == other.transactionBackoff
+				&& Objects.equal(transactionBudget, other.transactionBudget);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Settings [deadline=" + deadline + ", consistency=" + consistency
+				+ ", crossGroupTransactions=" + crossGroupTransactions + ", cacheMode="
+				+ cacheMode + ", retries=" + retries + ", pendingBatches=" + pendingBatches
+				+ ", dirtyChecking=" + dirtyChecking + ", transactionAttempts=" + transactionAttempts
+				+ ", transactionBackoff=" + transactionBackoff + ", transactionBudget=" + transactionBudget + "]";
+	}
 }
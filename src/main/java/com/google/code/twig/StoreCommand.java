@@ -16,6 +16,15 @@ public interface StoreCommand
 	{
 		C parent(Object parent);
 		C ensureUniqueKey();
+		
+		/**
+		 * Store every new or cascaded related instance together in as few bulk
+		 * puts as possible. Ids are allocated before the graph is encoded so all
+		 * keys are complete before anything is sent to the datastore. Entities
+		 * in the same entity group are put together. In a transaction the graph
+		 * must fit the entity groups it allows or nothing is sent.
+		 */
+		C graph();
 	}
 
 	interface SingleStoreCommand<T, C extends SingleStoreCommand<T, C>> extends CommonStoreCommand<T, C>, CommandTerminator<Key>
@@ -0,0 +1,265 @@
+package com.google.code.twig.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.google.code.twig.ObjectDatastore;
+import com.google.code.twig.ObjectDatastoreFactory;
+
+/**
+ * <p>Creates an {@link ObjectDatastore} for each request which collects all
+ * stores and deletes in batch mode and sends them to the datastore in bulk
+ * before the response is committed. New instances are given allocated ids so
+ * their keys are complete as soon as they are stored.</p>
+ *
+ * <p>The response body is held in memory until the batched operations have
+ * been sent so the client never sees a successful response for writes that
+ * failed. Redirects and errors are sent straight away after a flush. Set the
+ * init-param "buffer" to false to stream large responses instead, in which 
+ * case the response may be committed before the operations are sent.</p>
+ *
+ * <p>Request handlers get the current datastore from {@link #getDatastore()}.
+ * If the request throws an exception the batched operations are discarded.
+ * A handler may also end batch mode itself.</p>
+ *
+ * <p>The optional init-param "autoflush" sets the number of batched operations
+ * that will trigger a flush during the request.</p>
+ */
+public class UnitOfWorkFilter implements Filter
+{
+	private static final ThreadLocal<ObjectDatastore> current = new ThreadLocal<ObjectDatastore>();
+
+	private int threshold = Integer.MAX_VALUE;
+	private boolean buffer = true;
+
+	/**
+	 * @return The datastore for the request being processed by this thread
+	 * @throws IllegalStateException if this thread is not processing a request
+	 */
+	public static ObjectDatastore getDatastore()
+	{
+		ObjectDatastore datastore = current.get();
+		if (datastore == null)
+		{
+			throw new IllegalStateException("No datastore for this thread. Is " +
+					UnitOfWorkFilter.class.getSimpleName() + " configured for this request?");
+		}
+		return datastore;
+	}
+
+	@Override
+	public void init(FilterConfig config) throws ServletException
+	{
+		String autoflush = config.getInitParameter("autoflush");
+		if (autoflush != null)
+		{
+			threshold = Integer.parseInt(autoflush);
+		}
+		
+		String buffer = config.getInitParameter("buffer");
+		if (buffer != null)
+		{
+			this.buffer = Boolean.parseBoolean(buffer);
+		}
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException
+	{
+		ObjectDatastore datastore = createDatastore();
+		datastore.setAutoflushThreshold(threshold);
+		datastore.startBatchMode(true);
+		current.set(datastore);
+
+		BufferedResponse buffered = null;
+		boolean completed = false;
+		try
+		{
+			if (buffer && response instanceof HttpServletResponse)
+			{
+				buffered = new BufferedResponse((HttpServletResponse) response, datastore);
+				response = buffered;
+			}
+
+			chain.doFilter(request, response);
+			completed = true;
+		}
+		finally
+		{
+			current.remove();
+
+			// the handler may have already ended batch mode
+			if (datastore.isBatching())
+			{
+				if (completed)
+				{
+					datastore.stopBatchMode();
+				}
+				else
+				{
+					datastore.discardBatchedOperations();
+				}
+			}
+		}
+
+		// only send the body once all operations were stored
+		if (buffered != null)
+		{
+			buffered.commit();
+		}
+	}
+
+	/**
+	 * Override to create a datastore with custom settings or configuration
+	 */
+	protected ObjectDatastore createDatastore()
+	{
+		return ObjectDatastoreFactory.createObjectDatastore();
+	}
+
+	@Override
+	public void destroy()
+	{
+	}
+
+	/**
+	 * Keeps the body in memory so the response cannot be committed before
+	 * the batched operations are flushed
+	 */
+	private static class BufferedResponse extends HttpServletResponseWrapper
+	{
+		private final ObjectDatastore datastore;
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private ServletOutputStream stream;
+		private PrintWriter writer;
+
+		public BufferedResponse(HttpServletResponse response, ObjectDatastore datastore)
+		{
+			super(response);
+			this.datastore = datastore;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException
+		{
+			if (writer != null)
+			{
+				throw new IllegalStateException("getWriter() has already been called");
+			}
+			if (stream == null)
+			{
+				stream = new ServletOutputStream()
+				{
+					@Override
+					public void write(int b)
+					{
+						buffer.write(b);
+					}
+
+					@Override
+					public void write(byte[] bytes, int offset, int length)
+					{
+						buffer.write(bytes, offset, length);
+					}
+				};
+			}
+			return stream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException
+		{
+			if (stream != null)
+			{
+				throw new IllegalStateException("getOutputStream() has already been called");
+			}
+			if (writer == null)
+			{
+				writer = new PrintWriter(new OutputStreamWriter(buffer, getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException
+		{
+			// the real response is only flushed by commit()
+			if (writer != null)
+			{
+				writer.flush();
+			}
+		}
+
+		@Override
+		public void resetBuffer()
+		{
+			super.resetBuffer();
+			if (writer != null)
+			{
+				writer.flush();
+			}
+			buffer.reset();
+		}
+
+		@Override
+		public void reset()
+		{
+			super.reset();
+			if (writer != null)
+			{
+				writer.flush();
+			}
+			buffer.reset();
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException
+		{
+			datastore.flushBatchedOperations();
+			resetBuffer();
+			super.sendRedirect(location);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException
+		{
+			datastore.flushBatchedOperations();
+			resetBuffer();
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException
+		{
+			datastore.flushBatchedOperations();
+			resetBuffer();
+			super.sendError(sc, msg);
+		}
+
+		void commit() throws IOException
+		{
+			if (writer != null)
+			{
+				writer.flush();
+			}
+			if (buffer.size() > 0)
+			{
+				buffer.writeTo(getResponse().getOutputStream());
+			}
+			getResponse().flushBuffer();
+		}
+	}
+}
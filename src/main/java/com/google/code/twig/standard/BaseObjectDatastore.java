@@ -6,39 +6,64 @@ import static com.google.common.base.Predicates.not;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.datastore.ReadPolicy;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.utils.FutureWrapper;
 import com.google.code.twig.LoadCommand.CacheMode;
 import com.google.code.twig.ObjectDatastore;
 import com.google.code.twig.Settings;
 import com.google.code.twig.Work;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ForwardingIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
 
 
 /**
@@ -54,12 +79,52 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 {
 	private DatastoreService defaultDatastoreService;
 	private Transaction transaction;
+	
+	// the number of entity groups the current transaction may write to
+	private int transactionGroups;
+	
+	// puts and deletes made in the current transaction sent just before commit
+	private Map<Key, Entity> buffered;
+	
+	// kinds read or written in the current transaction to blame for contention
+	private Set<String> transactionKinds = new HashSet<String>();
+	
+	// set when the datastore fails a call made in the transaction with contention
+	private boolean contended;
+	
+	// entities put with their cache mode and keys deleted in the transaction to update caches after commit
+	private List<Entry<Entity, CacheMode>> transactionPuts;
+	private List<Key> transactionDeletes;
+	
+	// an asynchronous commit that has not yet been waited for
+	private Future<Void> pendingCommit;
 	private static final Logger logger = Logger.getLogger(BaseObjectDatastore.class.getName());
 
 	private Map<Key, Entity> batched;
 	private int threshold = Integer.MAX_VALUE;
+	
+	// give new instances complete keys while batching
+	boolean allocateBatchedIds;
+
+	// the datastore limits the number of entities or keys in one call
+	static final int MAXIMUM_BATCH_SIZE = 500;
+	
+	// the datastore limits the number of entity groups in a cross-group transaction
+	static final int MAXIMUM_TRANSACTION_GROUPS = 5;
 
 	private static final String MEMCACHE_PREFIX = "__twig";
+	
+	private static final Predicate<Entity> isKeyComplete = new Predicate<Entity>()
+	{
+		@Override
+		public boolean apply(Entity entity)
+		{
+			return entity.getKey().isComplete();
+		}
+	};
+	private static final int MINIMUM_CACHE_READS = 100;
+	private static final int MAXIMUM_CACHE_READS = 10000;
+	private static final int MAXIMUM_MEMCACHE_CHUNK_SIZE = 1000;
 	private static AsyncMemcacheService memcache;
 
 	public static class Statistics
@@ -71,6 +136,7 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		int memcacheGets;
 		int memcachePuts;
 		int datastoreGets;
+		int datastorePuts;
 
 		public int getGets()
 		{
@@ -84,15 +150,66 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		{
 			return this.datastoreGets;
 		}
+		public int getDatastorePuts()
+		{
+			return this.datastorePuts;
+		}
 
 		@Override
 		public String toString()
 		{
 			return "Statistics [puts=" + this.puts + ", gets=" + this.gets + ", queries="
 					+ this.queries + ", memcacheGets=" + this.memcacheGets + ", memcachePuts="
-					+ this.memcachePuts + ", datastoreGets=" + this.datastoreGets + "]";
+					+ this.memcachePuts + ", datastoreGets=" + this.datastoreGets + ", datastorePuts="
+					+ this.datastorePuts + "]";
+		}
+	}
+
+	/**
+	 * Counts transactions which failed because of contention on entity groups
+	 * of a kind that were retried or finally given up
+	 */
+	public static class Contention
+	{
+		private final AtomicInteger retries = new AtomicInteger();
+		private final AtomicInteger aborts = new AtomicInteger();
+
+		public int getRetries()
+		{
+			return retries.get();
+		}
+
+		public int getAborts()
+		{
+			return aborts.get();
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "Contention [retries=" + retries + ", aborts=" + aborts + "]";
 		}
 	}
+	
+	private static final ConcurrentMap<String, Contention> kindToContention = new ConcurrentHashMap<String, Contention>();
+	
+	/**
+	 * @return The contention of transactions that wrote this kind
+	 */
+	public static Contention getContention(String kind)
+	{
+		Contention contention = kindToContention.get(kind);
+		if (contention == null)
+		{
+			contention = new Contention();
+			Contention existing = kindToContention.putIfAbsent(kind, contention);
+			if (existing != null)
+			{
+				contention = existing;
+			}
+		}
+		return contention;
+	}
 
 	// TODO move statics into registry
 	// concurrency not a problem if configured once in during startup
@@ -131,11 +248,42 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		kindToCache.put(kind, new CacheDetails(cache, seconds, maximum, automatic, global));
 	}
 
+	/**
+	 * Stops caching the kind and drops the entities cached in memory
+	 */
+	public static void unregisterCachedKind(String kind)
+	{
+		kindToCache.remove(kind);
+	}
+
 	public static boolean isKindCached(String kind)
 	{
 		return kindToCache.containsKey(kind);
 	}
 
+	/**
+	 * Ranges of allocated ids are shared by every datastore in the process so
+	 * must be discarded if the underlying datastore is replaced such as in tests
+	 */
+	public static void discardAllocatedIds()
+	{
+		IdAllocator.discardAll();
+	}
+
+	/**
+	 * @return true if most reads of this kind are found in memory or memcache
+	 *         once enough reads were made to know
+	 */
+	protected final boolean isMostlyCached(String kind, CacheMode mode)
+	{
+		CacheDetails details = kindToCache.get(kind);
+		if (!isCacheEnabled(details, mode))
+		{
+			return false;
+		}
+		return details.getReads() >= MINIMUM_CACHE_READS && details.getHitRate() >= 0.5f;
+	}
+
 	// TODO create public cache options with builder
 	public static class CacheDetails
 	{
@@ -146,9 +294,9 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		private final boolean automatic;
 
 		// TODO write a filter to log these statistics
-//		private final AtomicInteger memcacheHits = new AtomicInteger();
-//		private final AtomicInteger memoryHits = new AtomicInteger();
-//		private final AtomicInteger reads = new AtomicInteger();
+		private final AtomicInteger memcacheHits = new AtomicInteger();
+		private final AtomicInteger memoryHits = new AtomicInteger();
+		private final AtomicInteger reads = new AtomicInteger();
 //		private final AtomicInteger memcacheWrites = new AtomicInteger();
 
 		public CacheDetails(Map<Key, Entity> cache, int seconds, int maximum, boolean automatic, boolean global)
@@ -160,21 +308,41 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 			this.global = global;
 		}
 
-//		public int getMemcacheHits()
-//		{
-//			return this.memcacheHits.get();
-//		}
-//
-//		public int getMemoryHits()
-//		{
-//			return this.memoryHits.get();
-//		}
-//
-//		public int getReads()
-//		{
-//			return this.reads.get();
-//		}
-//
+		public int getMemcacheHits()
+		{
+			return this.memcacheHits.get();
+		}
+
+		public int getMemoryHits()
+		{
+			return this.memoryHits.get();
+		}
+
+		public int getReads()
+		{
+			return this.reads.get();
+		}
+
+		private void read()
+		{
+			// halve the counts now and then so the hit rate follows recent reads
+			if (reads.incrementAndGet() > MAXIMUM_CACHE_READS)
+			{
+				reads.set(reads.get() / 2);
+				memoryHits.set(memoryHits.get() / 2);
+				memcacheHits.set(memcacheHits.get() / 2);
+			}
+		}
+
+		/**
+		 * @return The proportion of reads found in memory or memcache
+		 */
+		public float getHitRate()
+		{
+			int total = reads.get();
+			return total == 0 ? 0 : (float) (memoryHits.get() + memcacheHits.get()) / total;
+		}
+
 //		public int getMemcacheWrites()
 //		{
 //			return this.memcacheWrites.get();
@@ -194,10 +362,67 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 	public BaseObjectDatastore(Settings settings)
 	{
 		this.defaultSettings = settings;
-		this.defaultDatastoreService = newDatastoreService(settings);
+		this.defaultDatastoreService = keyToServices.getUnchecked(new ServiceKey(settings)).sync;
+	}
+
+	// services are thread safe so can be shared by all datastores with the same settings
+	private static final LoadingCache<ServiceKey, Services> keyToServices = CacheBuilder.newBuilder()
+			.concurrencyLevel(5)
+			.maximumSize(100)
+			.build(new CacheLoader<ServiceKey, Services>()
+			{
+				@Override
+				public Services load(ServiceKey key)
+				{
+					return new Services(key.settings);
+				}
+			});
+
+	private static final class Services
+	{
+		final DatastoreService sync;
+		final AsyncDatastoreService async;
+
+		Services(Settings settings)
+		{
+			DatastoreServiceConfig config = newDatastoreServiceConfig(settings);
+			sync = DatastoreServiceFactory.getDatastoreService(config);
+			async = DatastoreServiceFactory.getAsyncDatastoreService(config);
+		}
+	}
+
+	/**
+	 * Only the settings that are used by the services form the cache key
+	 */
+	private static final class ServiceKey
+	{
+		private final Settings settings;
+
+		ServiceKey(Settings settings)
+		{
+			this.settings = settings;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hashCode(settings.getDeadline(), settings.getConsistency());
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (obj instanceof ServiceKey == false)
+			{
+				return false;
+			}
+			Settings other = ((ServiceKey) obj).settings;
+			return Objects.equal(settings.getDeadline(), other.getDeadline())
+					&& settings.getConsistency() == other.getConsistency();
+		}
 	}
 
-	private DatastoreService newDatastoreService(Settings settings)
+	private static DatastoreServiceConfig newDatastoreServiceConfig(Settings settings)
 	{
 		DatastoreServiceConfig config = DatastoreServiceConfig.Builder.withDefaults();
 		if (settings.getDeadline() != null)
@@ -208,8 +433,7 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		{
 			config.readPolicy(new ReadPolicy(settings.getConsistency()));
 		}
-
-		return DatastoreServiceFactory.getDatastoreService(config);
+		return config;
 	}
 
 	public Settings getDefaultSettings()
@@ -219,10 +443,18 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 
 	@Override
 	public void startBatchMode()
+	{
+		startBatchMode(false);
+	}
+
+	@Override
+	public void startBatchMode(boolean allocateIds)
 	{
 		if (batched == null)
 		{
-			batched = new HashMap<Key, Entity>();
+			// keep the order of operations so keys are returned in order
+			batched = new LinkedHashMap<Key, Entity>();
+			allocateBatchedIds = allocateIds;
 		}
 		else
 		{
@@ -244,6 +476,29 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		}
 		
 		batched = null;
+		allocateBatchedIds = false;
+		batchFinished(true);
+	}
+
+	@Override
+	public void discardBatchedOperations()
+	{
+		if (batched == null)
+		{
+			throw new IllegalStateException("Batch was not in progress");
+		}
+		
+		logger.info("Discard " + batched.size() + " entities");
+		
+		batched = null;
+		allocateBatchedIds = false;
+		batchFinished(false);
+	}
+
+	@Override
+	public final boolean isBatching()
+	{
+		return batched != null;
 	}
 
 	protected List<Key> flushEntities(Settings settings)
@@ -255,17 +510,218 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 
 		logger.info("Flush " + batched.size() + " entities");
 
-		// put new entities
-		List<Key> keys = bulkPutWithTransaction(Collections2.filter(batched.values(), Predicates.notNull()), settings);
+		Collection<Entity> puts = Collections2.filter(batched.values(), Predicates.notNull());
+		Collection<Key> deletes = Maps.filterValues(batched, Predicates.isNull()).keySet();
+		
+		checkTransactionGroups(batched.keySet());
+		if (allocateBatchedIds)
+		{
+			// a graph puts each entity group in as few chunks as possible
+			puts = byEntityGroup(puts);
+		}
+
+		// send the first chunks of puts and deletes before waiting for any of them
+		Future<List<List<Key>>> putting = bulkPutLater(puts, settings);
+		Future<List<Void>> deleting = bulkDeleteLater(deletes, settings);
 		
-		// delete removed entities
-		bulkDeleteWithTransaction(Maps.filterValues(batched, Predicates.isNull()).keySet(), settings.getCacheMode());
+		List<Key> keys = new ArrayList<Key>(puts.size());
+		for (List<Key> chunk : getUnchecked(putting))
+		{
+			keys.addAll(chunk);
+		}
+		getUnchecked(deleting);
 		
 		batched.clear();
+		batchFinished(true);
 
 		return keys;
 	}
 
+	/**
+	 * Fails before anything is sent when a transaction could not write to all
+	 * the entity groups rather than after some chunks were put
+	 */
+	private void checkTransactionGroups(Collection<Key> keys)
+	{
+		if (transaction == null || !transaction.isActive())
+		{
+			return;
+		}
+		
+		Set<Object> groups = new HashSet<Object>();
+		for (Key key : keys)
+		{
+			groups.add(entityGroup(key));
+		}
+		
+		if (groups.size() > transactionGroups)
+		{
+			throw new IllegalStateException("Batch writes to " + groups.size() + 
+					" entity groups but the transaction allows " + transactionGroups);
+		}
+	}
+	
+	private static Collection<Entity> byEntityGroup(Collection<Entity> entities)
+	{
+		Map<Object, List<Entity>> groups = new LinkedHashMap<Object, List<Entity>>();
+		for (Entity entity : entities)
+		{
+			Object group = entityGroup(entity.getKey());
+			List<Entity> members = groups.get(group);
+			if (members == null)
+			{
+				members = new ArrayList<Entity>();
+				groups.put(group, members);
+			}
+			members.add(entity);
+		}
+		
+		List<Entity> result = new ArrayList<Entity>(entities.size());
+		for (List<Entity> members : groups.values())
+		{
+			result.addAll(members);
+		}
+		return result;
+	}
+	
+	// every new root entity is in its own group
+	private static Object entityGroup(Key key)
+	{
+		Key root = key;
+		while (root.getParent() != null)
+		{
+			root = root.getParent();
+		}
+		return root.isComplete() ? root : new Object();
+	}
+
+	private Future<List<List<Key>>> bulkPutLater(Collection<Entity> entities, Settings settings)
+	{
+		if (entities.isEmpty()) return Futures.immediateFuture(Collections.<List<Key>>emptyList());
+
+		Transaction current = null;
+		if (transaction == null || !transaction.isActive())
+		{
+			putToMemoryAndMemcache(entities, settings.getCacheMode());
+		}
+		else
+		{
+			current = transaction;
+			recordTransactionPuts(entities, settings.getCacheMode());
+		}
+
+		return putChunks(PipelinedBatches.partition(entities, MAXIMUM_BATCH_SIZE), current, settings);
+	}
+
+	private Future<List<Void>> bulkDeleteLater(Collection<Key> keys, Settings settings)
+	{
+		if (keys.isEmpty()) return Futures.immediateFuture(Collections.<Void>emptyList());
+
+		Transaction current = null;
+		if (transaction == null || !transaction.isActive())
+		{
+			removeFromMemoryAndMemcache(keys, settings.getCacheMode());
+		}
+		else
+		{
+			current = transaction;
+		}
+		
+		return deleteChunks(keys, current, settings);
+	}
+
+	private Future<List<List<Key>>> putChunks(List<List<Entity>> chunks, final Transaction current, final Settings settings)
+	{
+		final AsyncDatastoreService service = asyncService(settings);
+		return new PipelinedBatches<List<Entity>, List<Key>>(chunks, settings.getPendingBatches())
+		{
+			@Override
+			protected Future<List<Key>> send(List<Entity> chunk)
+			{
+				statistics.datastorePuts++;
+				return watchContention(current, service.put(current, chunk));
+			}
+
+			@Override
+			protected List<Key> retry(List<Entity> chunk, RuntimeException e)
+			{
+				// a failed chunk in a transaction cannot be put again and a chunk that
+				// failed after it was applied would store new entities twice
+				if (current != null || settings.getRetries() <= 1 || !isComplete(chunk))
+				{
+					throw e;
+				}
+				logger.log(Level.WARNING, "Retry chunk of " + chunk.size() + " entities", e);
+				
+				// the async put was the first try
+				return putToDatastoreWithRetry(chunk, settings, settings.getRetries() - 1);
+			}
+		};
+	}
+
+	private static boolean isComplete(Collection<Entity> entities)
+	{
+		for (Entity entity : entities)
+		{
+			if (!entity.getKey().isComplete())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Future<List<Void>> deleteChunks(Collection<Key> keys, Transaction current, Settings settings)
+	{
+		if (current != null)
+		{
+			recordTransactionKeys(keys);
+			if (transactionDeletes != null)
+			{
+				transactionDeletes.addAll(keys);
+			}
+		}
+		return deleteChunks(Iterables.partition(keys, MAXIMUM_BATCH_SIZE), current, settings);
+	}
+
+	private Future<List<Void>> deleteChunks(Iterable<List<Key>> chunks, final Transaction current, Settings settings)
+	{
+		final AsyncDatastoreService service = asyncService(settings);
+		return new PipelinedBatches<List<Key>, Void>(chunks, settings.getPendingBatches())
+		{
+			@Override
+			protected Future<Void> send(List<Key> chunk)
+			{
+				return watchContention(current, service.delete(current, chunk));
+			}
+		};
+	}
+
+	static <V> V getUnchecked(Future<V> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+		catch (ExecutionException e)
+		{
+			// only unchecked exceptions thrown from datastore service
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			else
+			{
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
 	protected final Key servicePut(Entity entity, Settings settings)
 	{
 		long start = System.currentTimeMillis();
@@ -322,24 +778,48 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 			}
 			return key;
 		}
+		else if (entity.getKey().isComplete())
+		{
+			recordTransactionPuts(Collections.singleton(entity), settings.getCacheMode());
+			buffered.put(entity.getKey(), entity);
+			return entity.getKey();
+		}
 		else
 		{
-			return service(settings).put(transaction, entity);
+			// the id must be known now so send it straight away
+			recordTransactionPuts(Collections.singleton(entity), settings.getCacheMode());
+			statistics.datastorePuts++;
+			try
+			{
+				return service(settings).put(transaction, entity);
+			}
+			catch (ConcurrentModificationException e)
+			{
+				contended = true;
+				throw e;
+			}
 		}
 	}
 
 	private DatastoreService service(Settings settings)
 	{
-		DatastoreService service;
-		if (settings != null)
+		if (settings == null || settings.equals(defaultSettings))
 		{
-			service = newDatastoreService(settings);
+			return defaultDatastoreService;
 		}
 		else
 		{
-			service = defaultDatastoreService;
+			return keyToServices.getUnchecked(new ServiceKey(settings)).sync;
+		}
+	}
+
+	final AsyncDatastoreService asyncService(Settings settings)
+	{
+		if (settings == null)
+		{
+			settings = defaultSettings;
 		}
-		return service;
+		return keyToServices.getUnchecked(new ServiceKey(settings)).async;
 	}
 
 	private boolean isCacheEnabled(CacheDetails details, CacheMode mode)
@@ -356,6 +836,7 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		{
 			try
 			{
+				statistics.datastorePuts++;
 				return service(settings).put(null, entity);
 			}
 			catch (RuntimeException e)
@@ -431,29 +912,90 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		}
 	}
 
-	private List<Key> bulkPutWithTransaction(Collection<Entity> entities, Settings settings)
+	/**
+	 * Puts entities in the active transaction even in batch mode so they are
+	 * committed together with the reads that checked them
+	 */
+	protected final List<Key> serviceTransactionPut(Collection<Entity> entities, Settings settings)
+	{
+		if (transaction == null || !transaction.isActive())
+		{
+			throw new IllegalStateException("No active transaction");
+		}
+		statistics.puts++;
+		return bulkPutWithTransaction(entities, settings);
+	}
+
+	private List<Key> bulkPutWithTransaction(Collection<Entity> entities, Settings settings)
 	{
 		if (entities.isEmpty()) return Collections.emptyList();
 
+		Transaction current = null;
 		if (transaction == null || !transaction.isActive())
 		{
 			putToMemoryAndMemcache(entities, settings.getCacheMode());
-			return putToDatastoreWithRetry(entities, settings);
+		}
+		else if (Iterables.all(entities, isKeyComplete))
+		{
+			recordTransactionPuts(entities, settings.getCacheMode());
+			List<Key> keys = new ArrayList<Key>(entities.size());
+			for (Entity entity : entities)
+			{
+				buffered.put(entity.getKey(), entity);
+				keys.add(entity.getKey());
+			}
+			return keys;
 		}
 		else
 		{
-			return service(settings).put(transaction, entities);
+			current = transaction;
+			recordTransactionPuts(entities, settings.getCacheMode());
+		}
+
+		List<List<Entity>> chunks = PipelinedBatches.partition(entities, MAXIMUM_BATCH_SIZE);
+		if (chunks.size() == 1)
+		{
+			if (current == null)
+			{
+				return putToDatastoreWithRetry(entities, settings);
+			}
+			else
+			{
+				statistics.datastorePuts++;
+				try
+				{
+					return service(settings).put(current, entities);
+				}
+				catch (ConcurrentModificationException e)
+				{
+					contended = true;
+					throw e;
+				}
+			}
+		}
+
+		// large puts are split into chunks which are sent at the same time
+		List<Key> keys = new ArrayList<Key>(entities.size());
+		for (List<Key> chunk : getUnchecked(putChunks(chunks, current, settings)))
+		{
+			keys.addAll(chunk);
 		}
+		return keys;
 	}
 
 	private List<Key> putToDatastoreWithRetry(Collection<Entity> entities, Settings settings)
+	{
+		return putToDatastoreWithRetry(entities, settings, defaultSettings.getRetries());
+	}
+
+	private List<Key> putToDatastoreWithRetry(Collection<Entity> entities, Settings settings, int retries)
 	{
 		RuntimeException last = null;
-		int retries = defaultSettings.getRetries();
 		for (int tries = 0; tries < retries; tries++)
 		{
 			try
 			{
+				statistics.datastorePuts++;
 				return service(settings).put(null, entities);
 			}
 			catch (RuntimeException e)
@@ -501,9 +1043,9 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 					}
 					else
 					{
-//						details.memoryHits.incrementAndGet();
+						details.memoryHits.incrementAndGet();
 					}
-//					details.reads.incrementAndGet();
+					details.read();
 
 				}
 				else
@@ -539,6 +1081,12 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 				}
 			}
 			
+			// read entities written earlier in this transaction
+			if (isBuffering() && buffered.containsKey(key))
+			{
+				return buffered.get(key);
+			}
+			
 			statistics.datastoreGets++;
 			Entity result;
 			if (transaction == null || !transaction.isActive())
@@ -547,7 +1095,16 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 			}
 			else
 			{
-				result = service(settings).get(transaction, key);
+				transactionKinds.add(key.getKind());
+				try
+				{
+					result = service(settings).get(transaction, key);
+				}
+				catch (ConcurrentModificationException e)
+				{
+					contended = true;
+					throw e;
+				}
 			}
 			return result;
 		}
@@ -602,7 +1159,7 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 			if (result != null)
 			{
 				// only increment hits as total was ++ in memory cache
-//				details.memcacheHits.incrementAndGet();
+				details.memcacheHits.incrementAndGet();
 			}
 		}
 
@@ -611,112 +1168,241 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 
 	protected final Map<Key, Entity> serviceGet(Collection<Key> keys, Settings settings)
 	{
-		statistics.gets++;
 		long start = System.currentTimeMillis();
 		try
 		{
-			if (transaction == null || !transaction.isActive())
+			return getUnchecked(serviceGetLater(keys, settings));
+		}
+		finally
+		{
+			if (logger.isLoggable(Level.FINE))
 			{
-				Map<Key, Entity> fromMemory = getFromMemory(keys, settings.getCacheMode());
+				logger.fine(System.currentTimeMillis() - start + "ms " + keys.toString());
+			}
+		}
+	}
 
-				Map<Key, Entity> result = null;
-				if (!fromMemory.isEmpty())
-				{
-					keys = Collections2.filter(keys, not(in(fromMemory.keySet())));
-					result = fromMemory;
-				}
+	/**
+	 * Looks in the memory cache, memcache and pending batched operations before 
+	 * sending an async bulk get to the datastore for any remaining keys. Found
+	 * entities are added to the cache tiers when the result is first requested.
+	 */
+	protected final Future<Map<Key, Entity>> serviceGetLater(Collection<Key> keys, final Settings settings)
+	{
+		statistics.gets++;
+		if (transaction == null || !transaction.isActive())
+		{
+			Map<Key, Entity> fromMemory = getFromMemory(keys, settings.getCacheMode());
 
-				if (keys.isEmpty())
-				{
-					return fromMemory;
-				}
+			Map<Key, Entity> result = null;
+			if (!fromMemory.isEmpty())
+			{
+				keys = Collections2.filter(keys, not(in(fromMemory.keySet())));
+				result = fromMemory;
+			}
+
+			if (keys.isEmpty())
+			{
+				return Futures.immediateFuture(fromMemory);
+			}
 
-				Map<Key, Entity> fromMemcache = getFromMemcache(keys, settings.getCacheMode());
+			Map<Key, Entity> fromMemcache = getFromMemcache(keys, settings.getCacheMode());
 
-				// add all found in memcache back to the memory cache
-				putToMemory(fromMemcache, settings.getCacheMode());
+			// add all found in memcache back to the memory cache
+			putToMemory(fromMemcache, settings.getCacheMode());
 
-				if (!fromMemcache.isEmpty())
+			if (!fromMemcache.isEmpty())
+			{
+				keys = Collections2.filter(keys, not(in(fromMemcache.keySet())));
+				if (result == null)
 				{
-					keys = Collections2.filter(keys, not(in(fromMemcache.keySet())));
-					if (result == null)
-					{
-						result = fromMemcache;
-					}
-					else
-					{
-						result.putAll(fromMemcache);
-					}
+					result = fromMemcache;
 				}
-				
-				// check pending batched operations
-				if (batched != null)
+				else
+				{
+					result.putAll(fromMemcache);
+				}
+			}
+			
+			// check pending batched operations
+			if (batched != null)
+			{
+				List<Key> unbatched = new ArrayList<Key>(keys.size());
+				for (Key key : keys)
 				{
-					Iterator<Key> keyator = keys.iterator();
-					while (keyator.hasNext())
+					// allow for null values which indicate a deleted entity
+					if (batched.containsKey(key))
 					{
-						Key key = (Key) keyator.next();
+						Entity entity = batched.get(key);
 						
-						// allow for null values which indicate a deleted entity
-						if (batched.containsKey(key))
+						// do not return anything for deleted entities
+						if (entity != null)
 						{
-							Entity entity = batched.get(key);
-							
-							// do not return anything for deleted entities
-							if (result != null)
+							if (result == null)
 							{
-								result.put(key, entity);
+								result = new HashMap<Key, Entity>();
 							}
-							keyator.remove();
+							result.put(key, entity);
 						}
 					}
+					else
+					{
+						unbatched.add(key);
+					}
 				}
+				keys = unbatched;
+			}
 
-				if (keys.isEmpty())
+			if (keys.isEmpty())
+			{
+				if (result == null)
 				{
-					return result;
+					return Futures.immediateFuture(Collections.<Key, Entity>emptyMap());
 				}
-				
-				// get entities from the datastore
-				statistics.datastoreGets++;
-				Map<Key, Entity> fromDatastore = service(settings).get(null, keys);
-
-				putToMemoryAndMemcache(fromDatastore.values(), settings.getCacheMode());
+				else
+				{
+					return Futures.immediateFuture(result);
+				}
+			}
+			
+			// get entities from the datastore without blocking
+			statistics.datastoreGets++;
+			Future<Map<Key, Entity>> fromDatastore = getChunks(keys, null, settings);
 
-				if (!fromDatastore.isEmpty())
+			final Map<Key, Entity> cached = result;
+			return new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(fromDatastore)
+			{
+				@Override
+				protected Map<Key, Entity> wrap(Map<Key, Entity> fromDatastore)
 				{
-					if (result == null)
+					putToMemoryAndMemcache(fromDatastore.values(), settings.getCacheMode());
+					
+					if (cached == null)
 					{
-						result = fromDatastore;
+						return fromDatastore;
 					}
 					else
 					{
+						// the datastore result may not be modifiable
+						Map<Key, Entity> result = new HashMap<Key, Entity>(cached);
 						result.putAll(fromDatastore);
+						return result;
 					}
 				}
 
-				if (result == null)
+				@Override
+				protected Throwable convertException(Throwable cause)
 				{
-					return Collections.emptyMap();
+					return cause;
 				}
-				else
+			};
+		}
+		else
+		{
+			// read entities written earlier in this transaction
+			Map<Key, Entity> written = null;
+			if (!buffered.isEmpty())
+			{
+				List<Key> unwritten = new ArrayList<Key>(keys.size());
+				for (Key key : keys)
 				{
-					return result;
+					if (buffered.containsKey(key))
+					{
+						if (written == null)
+						{
+							written = new HashMap<Key, Entity>();
+						}
+						
+						// do not return anything for deleted entities
+						Entity entity = buffered.get(key);
+						if (entity != null)
+						{
+							written.put(key, entity);
+						}
+					}
+					else
+					{
+						unwritten.add(key);
+					}
 				}
+				keys = unwritten;
 			}
-			else
+			
+			if (written == null)
 			{
 				statistics.datastoreGets++;
-				return service(settings).get(transaction, keys);
+				return getChunks(keys, transaction, settings);
+			}
+			else if (keys.isEmpty())
+			{
+				return Futures.immediateFuture(written);
 			}
+			
+			statistics.datastoreGets++;
+			final Map<Key, Entity> found = written;
+			return new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(getChunks(keys, transaction, settings))
+			{
+				@Override
+				protected Map<Key, Entity> wrap(Map<Key, Entity> fromDatastore)
+				{
+					Map<Key, Entity> result = new HashMap<Key, Entity>(fromDatastore);
+					result.putAll(found);
+					return result;
+				}
+
+				@Override
+				protected Throwable convertException(Throwable cause)
+				{
+					return cause;
+				}
+			};
 		}
-		finally
+	}
+
+	private Future<Map<Key, Entity>> getChunks(Collection<Key> keys, final Transaction current, Settings settings)
+	{
+		if (current != null)
 		{
-			if (logger.isLoggable(Level.FINE))
+			recordTransactionKeys(keys);
+		}
+		
+		final AsyncDatastoreService service = asyncService(settings);
+		if (keys.size() <= MAXIMUM_BATCH_SIZE)
+		{
+			return watchContention(current, service.get(current, keys));
+		}
+		
+		// copy the keys so a filtered view is only evaluated once
+		List<Key> copied = new ArrayList<Key>(keys);
+		Future<List<Map<Key, Entity>>> chunks = new PipelinedBatches<List<Key>, Map<Key, Entity>>(
+				Lists.partition(copied, MAXIMUM_BATCH_SIZE), settings.getPendingBatches())
+		{
+			@Override
+			protected Future<Map<Key, Entity>> send(List<Key> chunk)
 			{
-				logger.fine(System.currentTimeMillis() - start + "ms " + keys.toString());
+				return watchContention(current, service.get(current, chunk));
 			}
-		}
+		};
+		
+		return new FutureWrapper<List<Map<Key, Entity>>, Map<Key, Entity>>(chunks)
+		{
+			@Override
+			protected Map<Key, Entity> wrap(List<Map<Key, Entity>> chunks)
+			{
+				Map<Key, Entity> result = new HashMap<Key, Entity>();
+				for (Map<Key, Entity> chunk : chunks)
+				{
+					result.putAll(chunk);
+				}
+				return result;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause)
+			{
+				return cause;
+			}
+		};
 	}
 
 	private void putToMemory(Map<Key, Entity> fromMemcache, CacheMode mode)
@@ -805,7 +1491,7 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 			if (isCacheEnabled(details, mode))
 			{
 				// this is always called even when there is no memory cache
-//				details.reads.incrementAndGet();
+				details.read();
 
 				Map<Key, Entity> cache = details.cache;
 
@@ -815,7 +1501,7 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 					Entity cached = cache.get(key);
 					if (cached != null)
 					{
-//						details.memoryHits.incrementAndGet();
+						details.memoryHits.incrementAndGet();
 
 						if (result == null)
 						{
@@ -886,21 +1572,26 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 			Key key = memcacheToDatastoreKey(stringKey);
 			result.put(key, (Entity) cached.get(stringKey));
 
-//			// all results are from cached kinds so details exist
-//			CacheDetails details = kindToCache.get(key.getKind());
-//
-//			// only increment hits as total was ++ by memory cache
-//			details.memcacheHits.addAndGet(cached.size());
+			// all results are from cached kinds so details exist
+			CacheDetails details = kindToCache.get(key.getKind());
+
+			// only increment hits as total was ++ by memory cache
+			details.memcacheHits.incrementAndGet();
 		}
 
 		return result;
 	}
 
 	protected final void serviceDelete(Collection<Key> keys, CacheMode mode)
+	{
+		serviceDelete(keys, Settings.copy(defaultSettings).cacheMode(mode).build());
+	}
+
+	protected final void serviceDelete(Collection<Key> keys, Settings settings)
 	{
 		if (batched == null)
 		{
-			bulkDeleteWithTransaction(keys, mode);
+			bulkDeleteWithTransaction(keys, settings);
 		}
 		else
 		{
@@ -913,44 +1604,102 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 
 	public void bulkDeleteWithTransaction(Collection<Key> keys, CacheMode mode)
 	{
+		bulkDeleteWithTransaction(keys, Settings.copy(defaultSettings).cacheMode(mode).build());
+	}
+
+	public void bulkDeleteWithTransaction(Collection<Key> keys, Settings settings)
+	{
+		Transaction current = null;
 		if (transaction == null || !transaction.isActive())
 		{
-			Collection<String> removeFromMemcache = null;
+			removeFromMemoryAndMemcache(keys, settings.getCacheMode());
+		}
+		else
+		{
 			for (Key key : keys)
 			{
-				CacheDetails details = kindToCache.get(key.getKind());
-				if (isCacheEnabled(details, mode))
+				buffered.put(key, null);
+			}
+			return;
+		}
+
+		if (keys.size() <= MAXIMUM_BATCH_SIZE)
+		{
+			service(settings).delete(current, keys);
+		}
+		else
+		{
+			getUnchecked(deleteChunks(keys, current, settings));
+		}
+	}
+
+	/**
+	 * Deletes the keys in batches without waiting for each batch before the
+	 * next is sent so more keys can be read while earlier batches are deleted.
+	 */
+	protected final void serviceDeletePipelined(Iterator<Key> keys, final Settings settings)
+	{
+		final Iterator<List<Key>> batches = Iterators.partition(keys, MAXIMUM_BATCH_SIZE);
+		if (batched != null || transaction != null && transaction.isActive())
+		{
+			// batched and transactional deletes are sent together later
+			while (batches.hasNext())
+			{
+				serviceDelete(batches.next(), settings);
+			}
+			return;
+		}
+		
+		// keys are only read when a batch can be sent and one memcache call is made for each
+		Iterable<List<Key>> chunks = new Iterable<List<Key>>()
+		{
+			@Override
+			public Iterator<List<Key>> iterator()
+			{
+				return Iterators.transform(batches, new Function<List<Key>, List<Key>>()
 				{
-					if (details.cache != null)
+					@Override
+					public List<Key> apply(List<Key> batch)
 					{
-						details.cache.remove(key);
+						removeFromMemoryAndMemcache(batch, settings.getCacheMode());
+						return batch;
 					}
+				});
+			}
+		};
+		getUnchecked(deleteChunks(chunks, null, settings));
+	}
+
+	private void removeFromMemoryAndMemcache(Collection<Key> keys, CacheMode mode)
+	{
+		Collection<String> removeFromMemcache = null;
+		for (Key key : keys)
+		{
+			CacheDetails details = kindToCache.get(key.getKind());
+			if (isCacheEnabled(details, mode))
+			{
+				if (details.cache != null)
+				{
+					details.cache.remove(key);
+				}
 
-					if (details.global)
+				if (details.global)
+				{
+					if (removeFromMemcache == null)
 					{
-						if (removeFromMemcache == null)
-						{
-							removeFromMemcache = new ArrayList<String>(keys.size());
-						}
-						removeFromMemcache.add(datastoreToMemcacheKey(key));
+						removeFromMemcache = new ArrayList<String>(keys.size());
 					}
+					removeFromMemcache.add(datastoreToMemcacheKey(key));
 				}
 			}
-
-			if (removeFromMemcache != null)
-			{
-				getMemcacheService().deleteAll(removeFromMemcache);
-			}
-
-			defaultDatastoreService.delete(keys);
 		}
-		else
+
+		if (removeFromMemcache != null)
 		{
-			defaultDatastoreService.delete(transaction, keys);
+			getMemcacheService().deleteAll(removeFromMemcache);
 		}
 	}
 
-	// TODO return an iterator that updates the cache
 	protected final PreparedQuery servicePrepare(Query query, Settings settings)
 	{
 		if (transaction == null || !transaction.isActive())
@@ -963,25 +1712,427 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		}
 	}
 
+	/**
+	 * Puts the entities of cached kinds into the memory cache as they are
+	 * iterated and into memcache once for each chunk of results.
+	 */
+	protected final QueryResultIterator<Entity> cacheQueryResults(Query query, QueryResultIterator<Entity> entities, FetchOptions options, Settings settings)
+	{
+		// partial entities must never be cached
+		if (query.isKeysOnly() || !query.getProjections().isEmpty())
+		{
+			return entities;
+		}
+		
+		// results in a transaction may not be committed
+		if (transaction != null && transaction.isActive())
+		{
+			return entities;
+		}
+		
+		CacheDetails details = kindToCache.get(query.getKind());
+		if (!isCacheEnabled(details, settings.getCacheMode()))
+		{
+			return entities;
+		}
+		
+		int chunk = FetchOptions.DEFAULT_CHUNK_SIZE;
+		if (options != null && options.getChunkSize() != null)
+		{
+			chunk = Math.min(options.getChunkSize(), MAXIMUM_MEMCACHE_CHUNK_SIZE);
+		}
+		return new CachingQueryResultIterator(entities, details, chunk);
+	}
+
+	private class CachingQueryResultIterator extends ForwardingIterator<Entity> implements QueryResultIterator<Entity>
+	{
+		private final QueryResultIterator<Entity> entities;
+		private final CacheDetails details;
+		private final int chunk;
+		private final List<Entity> pending;
+
+		CachingQueryResultIterator(QueryResultIterator<Entity> entities, CacheDetails details, int chunk)
+		{
+			this.entities = entities;
+			this.details = details;
+			this.chunk = chunk;
+			this.pending = new ArrayList<Entity>(chunk);
+		}
+
+		@Override
+		protected Iterator<Entity> delegate()
+		{
+			return entities;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			boolean more = entities.hasNext();
+			if (!more)
+			{
+				flush();
+			}
+			return more;
+		}
+
+		@Override
+		public Entity next()
+		{
+			Entity entity = entities.next();
+			putToMemory(entity, details);
+			if (details.global)
+			{
+				pending.add(entity);
+				if (pending.size() >= chunk)
+				{
+					flush();
+				}
+			}
+			return entity;
+		}
+
+		private void flush()
+		{
+			if (!pending.isEmpty())
+			{
+				putToMemcache(pending, details);
+				pending.clear();
+			}
+		}
+
+		@Override
+		public Cursor getCursor()
+		{
+			return entities.getCursor();
+		}
+
+		@Override
+		public List<Index> getIndexList()
+		{
+			return entities.getIndexList();
+		}
+	}
+
+	private void putToMemcache(Collection<Entity> entities, CacheDetails details)
+	{
+		Map<String, Entity> keyToEntity = Maps.newHashMapWithExpectedSize(entities.size());
+		for (Entity entity : entities)
+		{
+			// make a string key to save serialization
+			keyToEntity.put(datastoreToMemcacheKey(entity.getKey()), entity);
+		}
+		
+		statistics.memcachePuts++;
+		if (details.seconds > 0)
+		{
+			getMemcacheService().putAll(keyToEntity, Expiration.byDeltaSeconds(details.seconds));
+		}
+		else
+		{
+			getMemcacheService().putAll(keyToEntity);
+		}
+	}
+
 	public DatastoreService getDefaultService()
 	{
 		return defaultDatastoreService;
 	}
 
 	public final Transaction getTransaction()
+	{
+		return transaction == null ? null : new BufferedTransaction(transaction);
+	}
+
+	/**
+	 * @return The transaction to pass to the datastore service
+	 */
+	final Transaction serviceTransaction()
 	{
 		return transaction;
 	}
 
 	public final Transaction beginTransaction()
 	{
-		if (getTransaction() != null && getTransaction().isActive())
+		if (transaction != null && transaction.isActive())
 		{
 			throw new IllegalStateException("Already in active transaction");
 		}
+		
+		// finish an asynchronous commit so its session state is not mixed with the new transaction
+		if (pendingCommit != null)
+		{
+			Future<Void> pending = pendingCommit;
+			pendingCommit = null;
+			try
+			{
+				getUnchecked(pending);
+			}
+			catch (RuntimeException e)
+			{
+				// the caller of commitAsync is given the failure
+				logger.log(Level.FINE, "Asynchronous commit failed", e);
+			}
+		}
+		
 		TransactionOptions options = TransactionOptions.Builder.withXG(defaultSettings.isCrossGroupTransactions());
 		transaction = defaultDatastoreService.beginTransaction(options);
-		return transaction;
+		transactionKinds.clear();
+		transactionGroups = options.isXG() ? MAXIMUM_TRANSACTION_GROUPS : 1;
+		buffered = new LinkedHashMap<Key, Entity>();
+		transactionPuts = new ArrayList<Entry<Entity, CacheMode>>();
+		transactionDeletes = new ArrayList<Key>();
+		return new BufferedTransaction(transaction);
+	}
+
+	private void recordTransactionPuts(Iterable<Entity> entities, CacheMode mode)
+	{
+		for (Entity entity : entities)
+		{
+			transactionKinds.add(entity.getKind());
+			if (transactionPuts != null)
+			{
+				transactionPuts.add(Maps.immutableEntry(entity, mode));
+			}
+		}
+	}
+
+	/**
+	 * Cached copies of entities written in a transaction are only replaced or
+	 * removed once it has committed so a rollback leaves the caches unchanged
+	 */
+	private void updateCachesAfterCommit(List<Entry<Entity, CacheMode>> puts, List<Key> deletes)
+	{
+		// the keys of entities put in the transaction are now complete
+		Map<Key, Entry<Entity, CacheMode>> written = new LinkedHashMap<Key, Entry<Entity, CacheMode>>();
+		for (Entry<Entity, CacheMode> entityAndMode : puts)
+		{
+			written.put(entityAndMode.getKey().getKey(), entityAndMode);
+		}
+		for (Key key : deletes)
+		{
+			written.put(key, null);
+		}
+		
+		List<Entity> cache = new ArrayList<Entity>();
+		List<Key> invalidate = new ArrayList<Key>();
+		for (Entry<Key, Entry<Entity, CacheMode>> keyAndEntity : written.entrySet())
+		{
+			CacheDetails details = kindToCache.get(keyAndEntity.getKey().getKind());
+			if (details == null)
+			{
+				continue;
+			}
+			
+			// each put is cached with the mode it was made with
+			Entry<Entity, CacheMode> entityAndMode = keyAndEntity.getValue();
+			if (entityAndMode != null && isCacheEnabled(details, entityAndMode.getValue()))
+			{
+				cache.add(entityAndMode.getKey());
+			}
+			else
+			{
+				// remove any stale copy even if this mode would not cache it
+				invalidate.add(keyAndEntity.getKey());
+			}
+		}
+		
+		if (!cache.isEmpty())
+		{
+			putToMemoryAndMemcache(cache, CacheMode.ON);
+		}
+		if (!invalidate.isEmpty())
+		{
+			removeFromMemoryAndMemcache(invalidate, CacheMode.ON);
+		}
+	}
+
+	final boolean isBuffering()
+	{
+		return buffered != null && transaction != null && transaction.isActive();
+	}
+
+	/**
+	 * Sends all puts and deletes made in the transaction in as few bulk calls
+	 * as possible just before it is committed
+	 */
+	private void flushBuffered()
+	{
+		if (!isBuffering() || buffered.isEmpty())
+		{
+			return;
+		}
+		
+		Collection<Entity> puts = new ArrayList<Entity>(Collections2.filter(buffered.values(), Predicates.notNull()));
+		Collection<Key> deletes = new ArrayList<Key>(Maps.filterValues(buffered, Predicates.isNull()).keySet());
+		
+		buffered.clear();
+
+		Future<List<List<Key>>> putting = null;
+		if (!puts.isEmpty())
+		{
+			putting = putChunks(PipelinedBatches.partition(puts, MAXIMUM_BATCH_SIZE), transaction, defaultSettings);
+		}
+		Future<List<Void>> deleting = null;
+		if (!deletes.isEmpty())
+		{
+			deleting = deleteChunks(deletes, transaction, defaultSettings);
+		}
+		
+		if (putting != null)
+		{
+			getUnchecked(putting);
+		}
+		if (deleting != null)
+		{
+			getUnchecked(deleting);
+		}
+	}
+
+	/**
+	 * Flushes the writes buffered in the transaction when it is committed
+	 */
+	private final class BufferedTransaction implements Transaction
+	{
+		private final Transaction delegate;
+
+		BufferedTransaction(Transaction delegate)
+		{
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void commit()
+		{
+			List<Entry<Entity, CacheMode>> puts;
+			List<Key> deletes;
+			try
+			{
+				flushBuffered();
+				puts = transactionPuts;
+				deletes = transactionDeletes;
+				delegate.commit();
+			}
+			catch (RuntimeException e)
+			{
+				if (e instanceof ConcurrentModificationException)
+				{
+					contended = true;
+				}
+				finished(false);
+				throw e;
+			}
+			finished(true);
+			
+			if (puts != null)
+			{
+				updateCachesAfterCommit(puts, deletes);
+			}
+		}
+
+		@Override
+		public Future<Void> commitAsync()
+		{
+			final List<Entry<Entity, CacheMode>> puts;
+			final List<Key> deletes;
+			Future<Void> result;
+			try
+			{
+				flushBuffered();
+				puts = transactionPuts;
+				deletes = transactionDeletes;
+				result = watchContention(delegate, delegate.commitAsync());
+			}
+			catch (RuntimeException e)
+			{
+				finished(false);
+				throw e;
+			}
+			
+			// the writes are not known to be stored until the future is done
+			final boolean current = transaction == delegate;
+			Future<Void> completion = new FutureWrapper<Void, Void>(result)
+			{
+				@Override
+				protected Void wrap(Void result)
+				{
+					if (current)
+					{
+						transactionFinished(true);
+					}
+					if (puts != null)
+					{
+						updateCachesAfterCommit(puts, deletes);
+					}
+					return null;
+				}
+
+				@Override
+				protected Throwable convertException(Throwable cause)
+				{
+					if (current)
+					{
+						transactionFinished(false);
+					}
+					return cause;
+				}
+			};
+			
+			// the transaction stays active until its future is done so stop later commands joining it
+			if (current)
+			{
+				buffered = null;
+				transactionPuts = null;
+				transactionDeletes = null;
+				transaction = null;
+				pendingCommit = completion;
+			}
+			return completion;
+		}
+
+		@Override
+		public void rollback()
+		{
+			finished(false);
+			delegate.rollback();
+		}
+
+		@Override
+		public Future<Void> rollbackAsync()
+		{
+			finished(false);
+			return delegate.rollbackAsync();
+		}
+
+		// a new transaction may have been started since this one
+		private void finished(boolean committed)
+		{
+			if (transaction == delegate)
+			{
+				buffered = null;
+				transactionPuts = null;
+				transactionDeletes = null;
+				transactionFinished(committed);
+			}
+		}
+
+		@Override
+		public String getId()
+		{
+			return delegate.getId();
+		}
+
+		@Override
+		public String getApp()
+		{
+			return delegate.getApp();
+		}
+
+		@Override
+		public boolean isActive()
+		{
+			return delegate.isActive();
+		}
 	}
 
 	public final Transaction beginOrJoinTransaction()
@@ -1058,15 +2209,125 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 		});
 	}
 	
+	/**
+	 * Performs the work in a transaction which is tried again after a delay if 
+	 * the commit fails because of contention up to the attempts and time set 
+	 * in the default settings. The session is restored to its state before 
+	 * each attempt so the work starts again from the same point. Work that 
+	 * joins an active transaction is only tried once.
+	 */
 	@SuppressWarnings("unchecked")
 	public final <T> T transact(Work<T> transactable)
 	{
+		if (transaction != null && transaction.isActive() || defaultSettings.getTransactionAttempts() <= 1)
+		{
+			return (T) attempt(transactable);
+		}
+		
+		long start = System.currentTimeMillis();
+		long backoff = defaultSettings.getTransactionBackoff();
+		for (int attempt = 1;; attempt++)
+		{
+			Object state = saveSessionState();
+			try
+			{
+				return (T) attempt(transactable);
+			}
+			catch (ConcurrentModificationException e)
+			{
+				if (!contended)
+				{
+					throw e;
+				}
+				
+				restoreSessionState(state);
+				
+				// vary the delay so competing transactions do not retry together
+				long delay = backoff / 2 + (long) (Math.random() * backoff);
+				Long budget = defaultSettings.getTransactionBudget();
+				if (attempt >= defaultSettings.getTransactionAttempts()
+						|| budget != null && System.currentTimeMillis() + delay - start > budget)
+				{
+					for (String kind : transactionKinds)
+					{
+						getContention(kind).aborts.incrementAndGet();
+					}
+					throw e;
+				}
+				
+				for (String kind : transactionKinds)
+				{
+					getContention(kind).retries.incrementAndGet();
+				}
+				logger.log(Level.FINE, "Retry transaction attempt " + attempt, e);
+				
+				try
+				{
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException interrupted)
+				{
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+				backoff *= 2;
+			}
+		}
+	}
+
+	private void recordTransactionKeys(Iterable<Key> keys)
+	{
+		for (Key key : keys)
+		{
+			transactionKinds.add(key.getKind());
+		}
+	}
+	
+	final void recordTransactionKind(String kind)
+	{
+		transactionKinds.add(kind);
+	}
+
+	/**
+	 * Only the datastore reports contention, from a commit or a call made in
+	 * the transaction. Any other concurrent modification comes from the work
+	 * itself which must not be repeated.
+	 */
+	final <V> Future<V> watchContention(Transaction current, Future<V> future)
+	{
+		if (current == null)
+		{
+			return future;
+		}
+		return new FutureWrapper<V, V>(future)
+		{
+			@Override
+			protected V wrap(V result)
+			{
+				return result;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause)
+			{
+				if (cause instanceof ConcurrentModificationException)
+				{
+					contended = true;
+				}
+				return cause;
+			}
+		};
+	}
+
+	private Object attempt(Work<?> transactable)
+	{
+		contended = false;
 		Transaction transaction = beginOrJoinTransaction();
 		try
 		{
 			Object result = transactable.perform(this);
 			transaction.commit();
-			return (T) result;
+			return result;
 		}
 		finally
 		{
@@ -1076,4 +2337,33 @@ public abstract class BaseObjectDatastore implements ObjectDatastore
 			}
 		}
 	}
+
+	/**
+	 * Called when a transaction is committed or rolled back
+	 */
+	protected void transactionFinished(boolean committed)
+	{
+	}
+
+	/**
+	 * Called when batched operations are flushed or discarded
+	 */
+	protected void batchFinished(boolean flushed)
+	{
+	}
+
+	/**
+	 * Called before each attempt of a transaction to remember any session state
+	 */
+	protected Object saveSessionState()
+	{
+		return null;
+	}
+
+	/**
+	 * Called after an attempt of a transaction failed so it can be tried again
+	 */
+	protected void restoreSessionState(Object state)
+	{
+	}
 }
@@ -0,0 +1,73 @@
+package com.google.code.twig.standard;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.code.twig.annotation.Version;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Property;
+
+/**
+ * A compact hash of the encoded properties of an entity which is the same
+ * for an entity read from the datastore and the entity encoded from the same
+ * unchanged instance.
+ */
+class EntitySnapshot
+{
+	private static final HashFunction function = Hashing.murmur3_128();
+
+	static HashCode hash(Entity entity, Class<?> type)
+	{
+		// the version is always incremented so must not count as a change
+		String ignored = null;
+		Version version = type.getAnnotation(Version.class);
+		if (version != null)
+		{
+			ignored = version.value();
+		}
+
+		// the proto has the same encoding for values of equivalent types
+		EntityProto proto = EntityTranslator.convertToPb(entity);
+		Map<String, Hasher> hashers = new LinkedHashMap<String, Hasher>();
+		hash(proto.propertys(), false, ignored, hashers);
+		hash(proto.rawPropertys(), true, ignored, hashers);
+
+		// properties may be in any order but values of one property are kept in order
+		List<HashCode> hashes = new ArrayList<HashCode>(hashers.size() + 1);
+		hashes.add(function.hashInt(hashers.size()));
+		for (Hasher hasher : hashers.values())
+		{
+			hashes.add(hasher.hash());
+		}
+		return Hashing.combineUnordered(hashes);
+	}
+
+	private static void hash(List<Property> properties, boolean raw, String ignored, Map<String, Hasher> hashers)
+	{
+		for (Property property : properties)
+		{
+			String name = property.getName();
+			if (name.equals(ignored))
+			{
+				continue;
+			}
+
+			Hasher hasher = hashers.get(name);
+			if (hasher == null)
+			{
+				hasher = function.newHasher();
+				hashers.put(name, hasher);
+			}
+			hasher.putBoolean(raw);
+			hasher.putBytes(property.toByteArray());
+		}
+	}
+}
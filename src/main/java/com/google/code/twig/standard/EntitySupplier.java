@@ -5,6 +5,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
@@ -14,13 +15,12 @@ public class EntitySupplier
 {
 	interface EntitySink
 	{
-		void pickup();
+		void pickup(Future<Map<Key, Entity>> keysToEntities);
 		Key order();
 	}
 
 	private final TranslatorObjectDatastore datastore;
 	private List<EntitySink> sinks = new ArrayList<EntitySink>();
-	private Map<Key, Entity> keysToEntities;
 	private final int chunk;
 	private final Settings settings;
 	
@@ -36,7 +36,12 @@ public class EntitySupplier
 		sinks.add(sink);
 	}
 	
-	public void demand()
+	/**
+	 * Starts an async bulk get of the next chunk of keys ordered by all sinks
+	 * 
+	 * @return Future that is done when the entities have arrived
+	 */
+	public Future<Map<Key, Entity>> demand()
 	{
 		Set<Key> orders = new HashSet<Key>(chunk);
 		int index = 0;
@@ -61,16 +66,13 @@ public class EntitySupplier
 			}
 		}
 		
-		keysToEntities = datastore.serviceGet(orders, settings);
+		Future<Map<Key, Entity>> keysToEntities = datastore.serviceGetLater(orders, settings);
 		
 		for (EntitySink sink : sinks)
 		{
-			sink.pickup();
+			sink.pickup(keysToEntities);
 		}
-	}
-	
-	public Entity get(Key key)
-	{
-		return keysToEntities.get(key);
+		
+		return keysToEntities;
 	}
 }
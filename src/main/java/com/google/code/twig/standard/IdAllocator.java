@@ -0,0 +1,94 @@
+package com.google.code.twig.standard;
+
+import java.util.Iterator;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Hands out allocated ids for one kind and parent to every datastore in the
+ * process. The next range is allocated in the background when the current
+ * range runs low so ids are usually returned without waiting for the datastore.
+ */
+class IdAllocator
+{
+	private static final Logger logger = Logger.getLogger(IdAllocator.class.getName());
+
+	// only keep allocators for recently used kinds and parents
+	private static final LoadingCache<String, IdAllocator> allocators = CacheBuilder.newBuilder()
+			.concurrencyLevel(5)
+			.maximumSize(1000)
+			.build(new CacheLoader<String, IdAllocator>()
+			{
+				@Override
+				public IdAllocator load(String key)
+				{
+					return new IdAllocator();
+				}
+			});
+
+	private Iterator<Key> current;
+	private long remaining;
+	private Future<KeyRange> next;
+
+	static long allocateId(AsyncDatastoreService service, Key parent, String kind, long size)
+	{
+		// ids are allocated separately in each namespace
+		String namespace = parent == null ? NamespaceManager.get() : parent.getNamespace();
+		String key = kind + "|" + namespace + "|" + parent;
+		return allocators.getUnchecked(key).next(service, parent, kind, size);
+	}
+
+	/**
+	 * Forget all allocated ranges such as when the datastore is reset
+	 */
+	static void discardAll()
+	{
+		allocators.invalidateAll();
+	}
+
+	private synchronized long next(AsyncDatastoreService service, Key parent, String kind, long size)
+	{
+		if (current == null || !current.hasNext())
+		{
+			KeyRange range = null;
+			if (next != null)
+			{
+				try
+				{
+					range = BaseObjectDatastore.getUnchecked(next);
+				}
+				catch (RuntimeException e)
+				{
+					logger.log(Level.WARNING, "Could not allocate ids in the background for " + kind, e);
+				}
+				next = null;
+			}
+
+			if (range == null)
+			{
+				range = BaseObjectDatastore.getUnchecked(service.allocateIds(parent, kind, size));
+			}
+
+			current = range.iterator();
+			remaining = range.getSize();
+		}
+
+		// start allocating the next range when half of this one is used
+		remaining--;
+		if (next == null && remaining <= size / 2)
+		{
+			next = service.allocateIds(parent, kind, size);
+		}
+
+		return current.next().getId();
+	}
+}
@@ -1,5 +1,9 @@
 package com.google.code.twig.standard;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -9,6 +13,7 @@ import com.google.appengine.api.datastore.Key;
 import com.google.code.twig.util.reference.ObjectReference;
 import com.google.code.twig.util.reference.SimpleObjectReference;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
 
 // TODO make this the base class of translator object datastore
 public class KeyInstanceCache
@@ -18,6 +23,9 @@ public class KeyInstanceCache
 		private static final long serialVersionUID = 1L;
 		private long version;
 		
+		// hash of the encoded properties when last loaded or stored
+		private HashCode snapshot;
+		
 		public KeyReference(Key object)
 		{
 			super(object);
@@ -43,6 +51,9 @@ public class KeyInstanceCache
 	// better than WeakHashMap because uses identity key comparison
 	// use a reference so we can hold a Key or a KeySpecification
 	private Map<Object, KeyReference> instanceToKeyReference = createInstanceToKeyReferenceMap();
+	
+	// instances newly cached while recording
+	private List<Object> recorded;
 
   private static Map<Object, KeyReference> createInstanceToKeyReferenceMap() {
     CacheBuilder cacheBuilder = CacheBuilder.newBuilder();
@@ -65,7 +76,33 @@ public class KeyInstanceCache
 		keyToInstance.put(key, object);
 		KeyReference reference = new KeyReference(key);
 		reference.version = version;
-		instanceToKeyReference.put(object, reference);
+		if (instanceToKeyReference.put(object, reference) == null && recorded != null)
+		{
+			recorded.add(object);
+		}
+	}
+	
+	/**
+	 * Remembers every instance that is newly cached until {@link #stopRecording()}
+	 * so they can be evicted together without evicting instances held before
+	 */
+	public void startRecording()
+	{
+		if (recorded != null)
+		{
+			throw new IllegalStateException("Already recording cached instances");
+		}
+		recorded = new ArrayList<Object>();
+	}
+	
+	/**
+	 * @return The instances newly cached since {@link #startRecording()}
+	 */
+	public List<Object> stopRecording()
+	{
+		List<Object> result = recorded;
+		recorded = null;
+		return result;
 	}
 	
 	/**
@@ -89,6 +126,50 @@ public class KeyInstanceCache
 		this.instanceToKeyReference.clear();
 	}
 	
+	/**
+	 * A copy of every association and version which can be restored when 
+	 * changes made since must be undone, such as a failed transaction
+	 */
+	public static class State
+	{
+		private final Map<Key, Object> keyToInstance;
+		private final Map<Object, KeyReference> instanceToKeyReference;
+		
+		// references are kept but their versions change
+		private final Map<KeyReference, Long> versions;
+		private final Map<KeyReference, HashCode> snapshots;
+		
+		private State(Map<Key, Object> keyToInstance, Map<Object, KeyReference> instanceToKeyReference)
+		{
+			this.keyToInstance = new HashMap<Key, Object>(keyToInstance);
+			this.instanceToKeyReference = new IdentityHashMap<Object, KeyReference>(instanceToKeyReference);
+			versions = new IdentityHashMap<KeyReference, Long>(instanceToKeyReference.size());
+			snapshots = new IdentityHashMap<KeyReference, HashCode>(instanceToKeyReference.size());
+			for (KeyReference reference : instanceToKeyReference.values())
+			{
+				versions.put(reference, reference.version);
+				snapshots.put(reference, reference.snapshot);
+			}
+		}
+	}
+	
+	public State save()
+	{
+		return new State(keyToInstance, instanceToKeyReference);
+	}
+	
+	public void restore(State state)
+	{
+		clear();
+		keyToInstance.putAll(state.keyToInstance);
+		instanceToKeyReference.putAll(state.instanceToKeyReference);
+		for (KeyReference reference : state.instanceToKeyReference.values())
+		{
+			reference.version = state.versions.get(reference);
+			reference.snapshot = state.snapshots.get(reference);
+		}
+	}
+
 	/**
 	 * Keys are changed when they are stored which alters their hash value
 	 * making it impossible to look up the instance by key.  This re-hashs
@@ -238,6 +319,26 @@ public class KeyInstanceCache
 		return reference.version == 0;
 	}
 
+	/**
+	 * @return The hash of the properties when the instance was last loaded or
+	 *         stored or null if no snapshot was taken
+	 */
+	public HashCode getSnapshot(Object instance)
+	{
+		KeyReference reference = instanceToKeyReference.get(instance);
+		return reference == null ? null : reference.snapshot;
+	}
+
+	public void setSnapshot(Object instance, HashCode snapshot)
+	{
+		KeyReference reference = instanceToKeyReference.get(instance);
+		if (reference == null)
+		{
+			throw new IllegalArgumentException("Instance is not associated: " + instance);
+		}
+		reference.snapshot = snapshot;
+	}
+
 	public boolean containsKey(Key key)
 	{
 		return keyToInstance.containsKey(key);
@@ -0,0 +1,344 @@
+package com.google.code.twig.standard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.code.twig.ChunkVisitor;
+import com.google.code.twig.ObjectDatastore;
+import com.google.code.twig.ObjectDatastoreFactory;
+import com.google.code.twig.ScanVisitor;
+import com.google.common.collect.Lists;
+
+/**
+ * <p>Visits every instance of a type by splitting its keys into ranges which
+ * are scanned at the same time, each by its own datastore. The ranges are
+ * chosen from a sample of keys ordered by the datastore scatter property.</p>
+ *
+ * <p>The cursor of each shard is saved in the datastore as the scan goes so a
+ * scan that fails can be run again with the same name to continue where each
+ * shard stopped. Call {@link #reset()} to scan again from the start.</p>
+ *
+ * <p>Shards can also be run by separate tasks with {@link #runShard(int, ScanVisitor)}
+ * once {@link #unfinishedShards()} has split the keys.</p>
+ */
+public class KindScan<T>
+{
+	// kinds starting with two underscores are reserved
+	private static final String SCAN_KIND = "_TwigScan";
+	private static final String SHARD_KIND = "_TwigScanShard";
+
+	private static final String SCATTER_PROPERTY = "__scatter__";
+
+	// sample several keys for each shard so the ranges are more even
+	private static final int SAMPLES_PER_SHARD = 32;
+
+	private static final int CREATE_ATTEMPTS = 3;
+
+	private final Class<T> type;
+	private final String name;
+	private int shards = 8;
+	private int chunkSize = 100;
+	private int checkpointEvery = 1;
+
+	/**
+	 * @param type The type of instances to scan
+	 * @param name Identifies the saved checkpoints of this scan
+	 */
+	public KindScan(Class<T> type, String name)
+	{
+		this.type = type;
+		this.name = name;
+	}
+
+	/**
+	 * @param shards The most key ranges to scan at the same time
+	 */
+	public KindScan<T> shards(int shards)
+	{
+		this.shards = shards;
+		return this;
+	}
+
+	/**
+	 * @param size The number of instances given to the visitor at once
+	 */
+	public KindScan<T> chunkSize(int size)
+	{
+		this.chunkSize = size;
+		return this;
+	}
+
+	/**
+	 * @param chunks The number of chunks to visit between saving the cursor
+	 */
+	public KindScan<T> checkpointEvery(int chunks)
+	{
+		this.checkpointEvery = chunks;
+		return this;
+	}
+
+	/**
+	 * Scans every unfinished shard using the executor and waits for them all
+	 * to finish
+	 *
+	 * @throws IllegalStateException if any shard failed
+	 */
+	public void run(ExecutorService executor, final ScanVisitor<T> visitor)
+	{
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final Integer index : unfinishedShards())
+		{
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					runShard(index, visitor);
+					return null;
+				}
+			}));
+		}
+
+		// wait for every shard so the failed ones can be run again
+		Throwable failure = null;
+		for (Future<?> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (ExecutionException e)
+			{
+				failure = e.getCause();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				failure = e;
+			}
+		}
+
+		if (failure != null)
+		{
+			throw new IllegalStateException("Scan " + name + " did not finish", failure);
+		}
+	}
+
+	/**
+	 * Splits the keys into shards the first time this scan is run
+	 *
+	 * @return The index of every shard that has not finished
+	 */
+	public List<Integer> unfinishedShards()
+	{
+		DatastoreService service = DatastoreServiceFactory.getDatastoreService();
+		List<Entity> saved = savedShards(service, null);
+		if (saved.isEmpty())
+		{
+			saved = createShards(service, split());
+		}
+
+		List<Integer> unfinished = new ArrayList<Integer>(saved.size());
+		for (Entity shard : saved)
+		{
+			if (!Boolean.TRUE.equals(shard.getProperty("done")))
+			{
+				unfinished.add((int) shard.getKey().getId() - 1);
+			}
+		}
+		return unfinished;
+	}
+
+	// an ancestor query is consistent so no saved shard is missed
+	private List<Entity> savedShards(DatastoreService service, Transaction txn)
+	{
+		Query query = new Query(SHARD_KIND, scanKey());
+		return service.prepare(txn, query).asList(FetchOptions.Builder.withDefaults());
+	}
+
+	// workers that start together must not both save shards
+	private List<Entity> createShards(DatastoreService service, List<Entity> ranges)
+	{
+		for (int attempt = 1; ; attempt++)
+		{
+			Transaction txn = service.beginTransaction();
+			try
+			{
+				List<Entity> saved = savedShards(service, txn);
+				if (saved.isEmpty())
+				{
+					// all workers write the scan entity so only one can commit
+					Entity scan = new Entity(scanKey());
+					scan.setUnindexedProperty("shards", ranges.size());
+					List<Entity> entities = new ArrayList<Entity>(ranges);
+					entities.add(scan);
+					service.put(txn, entities);
+					saved = ranges;
+				}
+				txn.commit();
+				return saved;
+			}
+			catch (ConcurrentModificationException e)
+			{
+				// another worker saved its shards first so read them next time
+				if (attempt == CREATE_ATTEMPTS)
+				{
+					throw e;
+				}
+			}
+			finally
+			{
+				if (txn.isActive())
+				{
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans one key range from its last checkpoint with a new datastore
+	 */
+	public void runShard(int index, final ScanVisitor<T> visitor)
+	{
+		final DatastoreService service = DatastoreServiceFactory.getDatastoreService();
+		final Entity shard;
+		try
+		{
+			shard = service.get(KeyFactory.createKey(scanKey(), SHARD_KIND, index + 1));
+		}
+		catch (EntityNotFoundException e)
+		{
+			throw new IllegalArgumentException("No shard " + index + " in scan " + name, e);
+		}
+
+		if (Boolean.TRUE.equals(shard.getProperty("done")))
+		{
+			return;
+		}
+
+		final TranslatorObjectDatastore datastore = (TranslatorObjectDatastore) createDatastore();
+		StandardRootFindCommand<T> find = datastore.find().type(type);
+		find.addSort(Entity.KEY_RESERVED_PROPERTY);
+
+		Key start = (Key) shard.getProperty("start");
+		if (start != null)
+		{
+			find.addFilterDirect(Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, start);
+		}
+		Key end = (Key) shard.getProperty("end");
+		if (end != null)
+		{
+			find.addFilterDirect(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN, end);
+		}
+
+		Text cursor = (Text) shard.getProperty("cursor");
+		if (cursor != null)
+		{
+			find.continueFrom(cursor.getValue());
+		}
+
+		find.forEach(chunkSize, new ChunkVisitor<T>()
+		{
+			private int chunks;
+
+			@Override
+			public boolean visit(List<T> chunk, String cursor)
+			{
+				visitor.visit(chunk, datastore);
+				if (++chunks % checkpointEvery == 0)
+				{
+					shard.setUnindexedProperty("cursor", new Text(cursor));
+					service.put(shard);
+				}
+				return true;
+			}
+		});
+
+		shard.setProperty("done", true);
+		service.put(shard);
+	}
+
+	/**
+	 * Removes the saved shards so the next run starts from the beginning
+	 */
+	public void reset()
+	{
+		DatastoreService service = DatastoreServiceFactory.getDatastoreService();
+		Query query = new Query(SHARD_KIND, scanKey()).setKeysOnly();
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity shard : service.prepare(query).asIterable())
+		{
+			keys.add(shard.getKey());
+		}
+		keys.add(scanKey());
+		service.delete(keys);
+	}
+
+	/**
+	 * Override to create a datastore with custom settings or configuration
+	 */
+	protected ObjectDatastore createDatastore()
+	{
+		return ObjectDatastoreFactory.createObjectDatastore();
+	}
+
+	private Key scanKey()
+	{
+		return KeyFactory.createKey(SCAN_KIND, name);
+	}
+
+	// key ranges between evenly spaced keys of a random sample
+	private List<Entity> split()
+	{
+		TranslatorObjectDatastore datastore = (TranslatorObjectDatastore) createDatastore();
+		String kind = datastore.getConfiguration().typeToKind(type);
+
+		Query query = new Query(kind).addSort(SCATTER_PROPERTY).setKeysOnly();
+		List<Entity> samples = datastore.servicePrepare(query, datastore.getDefaultSettings())
+				.asList(FetchOptions.Builder.withLimit(shards * SAMPLES_PER_SHARD));
+
+		List<Key> keys = Lists.transform(samples, TranslatorObjectDatastore.entityToKeyFunction);
+		keys = new ArrayList<Key>(keys);
+		Collections.sort(keys);
+
+		List<Key> splits = new ArrayList<Key>(shards);
+		for (int i = 1; i < shards && !keys.isEmpty(); i++)
+		{
+			Key split = keys.get(i * keys.size() / shards);
+			if (splits.isEmpty() || !splits.get(splits.size() - 1).equals(split))
+			{
+				splits.add(split);
+			}
+		}
+
+		// the first and last ranges are open so keys outside the sample are included
+		List<Entity> ranges = new ArrayList<Entity>(splits.size() + 1);
+		for (int i = 0; i <= splits.size(); i++)
+		{
+			Entity shard = new Entity(SHARD_KIND, i + 1, scanKey());
+			shard.setProperty("start", i == 0 ? null : splits.get(i - 1));
+			shard.setProperty("end", i == splits.size() ? null : splits.get(i));
+			shard.setProperty("done", false);
+			ranges.add(shard);
+		}
+		return ranges;
+	}
+}
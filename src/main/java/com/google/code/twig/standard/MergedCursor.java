@@ -0,0 +1,179 @@
+package com.google.code.twig.standard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityComparatorAccessor;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.common.io.BaseEncoding;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+
+/**
+ * The position in the merged results of several queries made from the cursor
+ * of each query and the sort values of the last merged result. Results from a
+ * query that are not after the last result were already returned by another
+ * query so they are skipped when continuing.
+ *
+ * The web-safe string is written field by field so a string sent back by a
+ * client is only ever parsed as cursors and an entity protocol buffer.
+ */
+class MergedCursor
+{
+	// cannot be part of a base64 cursor string
+	private static final String PREFIX = "~";
+
+	private static final int VERSION = 1;
+
+	// far more queries than a find could merge
+	private static final int MAXIMUM_CURSORS = 1000;
+
+	private final Cursor[] cursors;
+	private Entity last;
+
+	MergedCursor(int size)
+	{
+		cursors = new Cursor[size];
+	}
+
+	MergedCursor(MergedCursor start)
+	{
+		cursors = start.cursors.clone();
+		last = start.last;
+	}
+
+	int size()
+	{
+		return cursors.length;
+	}
+
+	Cursor getCursor(int index)
+	{
+		return cursors[index];
+	}
+
+	Entity getLast()
+	{
+		return last == null ? null : EntityComparatorAccessor.comparableEntity(last);
+	}
+
+	void advance(int index, Cursor cursor, Entity entity, List<SortPredicate> sorts)
+	{
+		cursors[index] = cursor;
+
+		// only keep the values needed to compare with later results
+		last = new Entity(entity.getKey());
+		for (SortPredicate sort : sorts)
+		{
+			last.setProperty(sort.getPropertyName(), entity.getProperty(sort.getPropertyName()));
+		}
+	}
+
+	String toWebSafeString()
+	{
+		try
+		{
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(baos);
+			output.writeByte(VERSION);
+			output.writeInt(cursors.length);
+			for (Cursor cursor : cursors)
+			{
+				output.writeBoolean(cursor != null);
+				if (cursor != null)
+				{
+					output.writeUTF(cursor.toWebSafeString());
+				}
+			}
+
+			output.writeBoolean(last != null);
+			if (last != null)
+			{
+				byte[] proto = EntityTranslator.convertToPb(last).toByteArray();
+				output.writeInt(proto.length);
+				output.write(proto);
+			}
+			output.close();
+			return PREFIX + BaseEncoding.base64Url().omitPadding().encode(baos.toByteArray());
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static boolean isMerged(String cursor)
+	{
+		return cursor.startsWith(PREFIX);
+	}
+
+	static MergedCursor fromWebSafeString(String cursor)
+	{
+		if (!isMerged(cursor))
+		{
+			throw new IllegalArgumentException("Not a merged cursor " + cursor);
+		}
+		try
+		{
+			byte[] bytes = BaseEncoding.base64Url().omitPadding().decode(cursor.substring(PREFIX.length()));
+			DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+			if (input.readByte() != VERSION)
+			{
+				throw new IllegalArgumentException("Unknown merged cursor version");
+			}
+
+			int size = input.readInt();
+			if (size <= 0 || size > MAXIMUM_CURSORS)
+			{
+				throw new IllegalArgumentException("Bad number of cursors " + size);
+			}
+
+			MergedCursor merged = new MergedCursor(size);
+			for (int i = 0; i < size; i++)
+			{
+				if (input.readBoolean())
+				{
+					merged.cursors[i] = Cursor.fromWebSafeString(input.readUTF());
+				}
+			}
+
+			if (input.readBoolean())
+			{
+				int length = input.readInt();
+				if (length <= 0 || length > input.available())
+				{
+					throw new IllegalArgumentException("Bad last result length " + length);
+				}
+				byte[] proto = new byte[length];
+				input.readFully(proto);
+
+				EntityProto parsed = new EntityProto();
+				if (!parsed.parseFrom(proto) || !parsed.hasKey())
+				{
+					throw new IllegalArgumentException("Bad last result");
+				}
+				merged.last = EntityTranslator.createFromPb(parsed);
+			}
+
+			if (input.available() > 0)
+			{
+				throw new IllegalArgumentException("Unexpected data after merged cursor");
+			}
+			return merged;
+		}
+		catch (IOException e)
+		{
+			throw new IllegalArgumentException("Could not read merged cursor " + cursor, e);
+		}
+		catch (RuntimeException e)
+		{
+			throw new IllegalArgumentException("Could not read merged cursor " + cursor, e);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.google.code.twig.standard;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.code.twig.FindCommand.RootFindCommand;
+import com.google.common.collect.ForwardingIterator;
+
+/**
+ * Results of a find that merges several queries. A single {@link Cursor} cannot
+ * hold the position of every query so use {@link #getWebSafeCursor()} and pass
+ * it to {@link RootFindCommand#continueFrom(String)} to get the next page.
+ */
+public class MergedQueryResultIterator<T> extends ForwardingIterator<T> implements QueryResultIterator<T>
+{
+	private final Iterator<T> delegate;
+	private final MergedCursor cursor;
+
+	MergedQueryResultIterator(Iterator<T> delegate, MergedCursor cursor)
+	{
+		this.delegate = delegate;
+		this.cursor = cursor;
+	}
+
+	/**
+	 * @return The position after the last result returned from this iterator
+	 */
+	public String getWebSafeCursor()
+	{
+		return cursor.toWebSafeString();
+	}
+
+	@Override
+	public Cursor getCursor()
+	{
+		throw new UnsupportedOperationException("Use getWebSafeCursor() with merged results");
+	}
+
+	@Override
+	protected Iterator<T> delegate()
+	{
+		return delegate;
+	}
+
+	@Override
+	public List<Index> getIndexList()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,260 @@
+package com.google.code.twig.standard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Sends chunks of a large batch operation to the async datastore service with
+ * no more than a fixed number waiting at once. The first chunks are sent
+ * straight away and each following chunk when an earlier one completes. The
+ * results are returned in the same order as the chunks.
+ */
+abstract class PipelinedBatches<C, R> implements Future<List<R>>
+{
+	// well under the limit of a single datastore call
+	static final int MAXIMUM_BATCH_BYTES = 5 * 1024 * 1024;
+
+	// keys, numbers and other small values
+	private static final int ESTIMATED_VALUE_BYTES = 16;
+
+	private final Iterator<C> chunks;
+	private final int window;
+	private final LinkedList<C> sent = new LinkedList<C>();
+	private final LinkedList<Future<R>> pending = new LinkedList<Future<R>>();
+	private final List<R> done = new ArrayList<R>();
+	private ExecutionException failure;
+
+	PipelinedBatches(Iterable<C> chunks, int window)
+	{
+		this.chunks = chunks.iterator();
+		this.window = Math.max(1, window);
+		fill();
+	}
+
+	/**
+	 * Sends one chunk without waiting for the result
+	 */
+	protected abstract Future<R> send(C chunk);
+
+	/**
+	 * Called when a chunk failed to give a chance to send it again
+	 */
+	protected R retry(C chunk, RuntimeException e)
+	{
+		throw e;
+	}
+
+	private void fill()
+	{
+		while (pending.size() < window && chunks.hasNext())
+		{
+			C chunk = chunks.next();
+			sent.add(chunk);
+			pending.add(send(chunk));
+		}
+	}
+
+	@Override
+	public synchronized List<R> get() throws InterruptedException, ExecutionException
+	{
+		try
+		{
+			return await(false, 0);
+		}
+		catch (TimeoutException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized List<R> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		return await(true, System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	// a chunk that times out is kept so a later call continues from it
+	private List<R> await(boolean timed, long deadline) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if (failure != null)
+		{
+			throw failure;
+		}
+
+		while (!pending.isEmpty())
+		{
+			Future<R> future = pending.getFirst();
+			R result;
+			try
+			{
+				if (timed)
+				{
+					result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				}
+				else
+				{
+					result = future.get();
+				}
+			}
+			catch (ExecutionException e)
+			{
+				try
+				{
+					result = retry(sent.getFirst(), unchecked(e.getCause()));
+				}
+				catch (RuntimeException retried)
+				{
+					failure = new ExecutionException(retried);
+					throw failure;
+				}
+			}
+			pending.removeFirst();
+			sent.removeFirst();
+			done.add(result);
+			fill();
+		}
+		return done;
+	}
+
+	private static RuntimeException unchecked(Throwable cause)
+	{
+		if (cause instanceof RuntimeException)
+		{
+			return (RuntimeException) cause;
+		}
+		return new RuntimeException(cause);
+	}
+
+	@Override
+	public synchronized boolean isDone()
+	{
+		if (chunks.hasNext())
+		{
+			return false;
+		}
+		for (Future<R> future : pending)
+		{
+			if (!future.isDone())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning)
+	{
+		boolean cancelled = false;
+		for (Future<R> future : pending)
+		{
+			cancelled |= future.cancel(mayInterruptIfRunning);
+		}
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isCancelled()
+	{
+		for (Future<R> future : pending)
+		{
+			if (future.isCancelled())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Splits entities into chunks of no more than the maximum count or the
+	 * estimated serialized size of a datastore call
+	 */
+	static List<List<Entity>> partition(Collection<Entity> entities, int count)
+	{
+		List<List<Entity>> partitions = new ArrayList<List<Entity>>();
+		List<Entity> current = new ArrayList<Entity>(Math.min(count, entities.size()));
+		int bytes = 0;
+		for (Entity entity : entities)
+		{
+			int size = estimateSize(entity);
+			if (!current.isEmpty() && (current.size() >= count || bytes + size > MAXIMUM_BATCH_BYTES))
+			{
+				partitions.add(current);
+				current = new ArrayList<Entity>(Math.min(count, entities.size()));
+				bytes = 0;
+			}
+			current.add(entity);
+			bytes += size;
+		}
+
+		if (!current.isEmpty())
+		{
+			partitions.add(current);
+		}
+		return partitions;
+	}
+
+	// only large values are counted which is much cheaper than encoding the entity
+	private static int estimateSize(PropertyContainer container)
+	{
+		int size = ESTIMATED_VALUE_BYTES;
+		for (Map.Entry<String, Object> property : container.getProperties().entrySet())
+		{
+			size += property.getKey().length() + estimateSize(property.getValue());
+		}
+		return size;
+	}
+
+	private static int estimateSize(Object value)
+	{
+		if (value instanceof String)
+		{
+			return ((String) value).length();
+		}
+		else if (value instanceof Text)
+		{
+			return ((Text) value).getValue().length();
+		}
+		else if (value instanceof Blob)
+		{
+			return ((Blob) value).getBytes().length;
+		}
+		else if (value instanceof ShortBlob)
+		{
+			return ((ShortBlob) value).getBytes().length;
+		}
+		else if (value instanceof EmbeddedEntity)
+		{
+			return estimateSize((EmbeddedEntity) value);
+		}
+		else if (value instanceof Collection<?>)
+		{
+			int size = 0;
+			for (Object item : (Collection<?>) value)
+			{
+				size += estimateSize(item);
+			}
+			return size;
+		}
+		else
+		{
+			return ESTIMATED_VALUE_BYTES;
+		}
+	}
+}
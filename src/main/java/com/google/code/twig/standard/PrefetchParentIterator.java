@@ -1,15 +1,18 @@
 package com.google.code.twig.standard;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.common.base.Function;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Futures;
 
 class PrefetchParentIterator extends AbstractIterator<Entity>
 {
@@ -17,6 +20,8 @@ class PrefetchParentIterator extends AbstractIterator<Entity>
 	private Iterator<Entity> parents;
 	private final int fetchBy;
 	private final TranslatorObjectDatastore datastore;
+	private List<Key> keys;
+	private Future<Map<Key, Entity>> keysToEntities;
 
 	PrefetchParentIterator(Iterator<Entity> children, TranslatorObjectDatastore datastore, int fetchBy)
 	{
@@ -25,25 +30,39 @@ class PrefetchParentIterator extends AbstractIterator<Entity>
 		this.fetchBy = fetchBy;
 	}
 
+	/**
+	 * Starts an async bulk get for the parents of the next chunk of children
+	 */
+	Future<Map<Key, Entity>> prefetch()
+	{
+		// match the key iterator chunk size
+		keys = new ArrayList<Key>(fetchBy);
+		for (int i = 0; i < fetchBy && children.hasNext(); i++)
+		{
+			keys.add(children.next().getKey().getParent());
+		}
+
+		// do a bulk get of the keys
+		keysToEntities = keysToEntitiesLater(keys);
+		return keysToEntities;
+	}
+
 	@Override
 	protected Entity computeNext()
 	{
 		if (parents == null)
 		{
-			if (!children.hasNext())
-			{
-				return endOfData();
-			}
-
-			// match the key iterator chunk size
-			List<Key> keys = new ArrayList<Key>(fetchBy);
-			for (int i = 0; i < fetchBy && children.hasNext(); i++)
+			if (keysToEntities == null)
 			{
-				keys.add(children.next().getKey().getParent());
+				if (!children.hasNext())
+				{
+					return endOfData();
+				}
+				prefetch();
 			}
 
-			// do a bulk get of the keys
-			final Map<Key, Entity> keyToEntity = keysToEntities(keys);
+			final Map<Key, Entity> keyToEntity = BaseObjectDatastore.getUnchecked(keysToEntities);
+			keysToEntities = null;
 
 			// keep the order of the original keys
 			parents = Iterators.transform(keys.iterator(), new Function<Key, Entity>()
@@ -71,8 +90,12 @@ class PrefetchParentIterator extends AbstractIterator<Entity>
 		}
 	}
 
-	protected Map<Key, Entity> keysToEntities(List<Key> keys)
+	protected Future<Map<Key, Entity>> keysToEntitiesLater(List<Key> keys)
 	{
-		return datastore.serviceGet(keys, datastore.getDefaultSettings());
+		if (keys.isEmpty())
+		{
+			return Futures.immediateFuture(Collections.<Key, Entity>emptyMap());
+		}
+		return datastore.serviceGetLater(keys, datastore.getDefaultSettings());
 	}
-}
\ No newline at end of file
+}
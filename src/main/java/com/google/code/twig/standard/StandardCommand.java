@@ -10,14 +10,18 @@ class StandardCommand
 	StandardCommand(TranslatorObjectDatastore datastore)
 	{
 		datastore.command = this;
+		this.datastore = datastore;
 		
-		// check we have the same thread
+		checkThread();
+	}
+
+	// check we have the same thread
+	final void checkThread()
+	{
 		if (datastore.thread != Thread.currentThread())
 		{
 			throw new IllegalStateException("Detected use of ObjectDatastore by more than one thread.");
 		}
-		
-		this.datastore = datastore;
 	}
 
 	protected Long readEntityVersion(Entity entity, Class<?> type)
@@ -5,36 +5,53 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityComparatorAccessor;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortPredicate;
 import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.code.twig.FindCommand;
 import com.google.code.twig.FindCommand.ChildFindCommand;
 import com.google.code.twig.FindCommand.MergeFindCommand;
 import com.google.code.twig.FindCommand.MergeOperator;
+import com.google.code.twig.Parameter;
 import com.google.code.twig.LoadCommand.CacheMode;
 import com.google.code.twig.Path;
 import com.google.code.twig.Property;
 import com.google.code.twig.PropertyTranslator;
 import com.google.code.twig.util.Pair;
+import com.google.code.twig.util.SortedIntersectionIterator;
+import com.google.code.twig.util.SortedMergeIterator;
 import com.google.code.twig.util.reference.ObjectReference;
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 
 abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>> extends StandardRestrictedFindCommand<C> implements FindCommand.MergeFindCommand
 {
@@ -43,7 +60,14 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 	protected boolean remember;
 	protected MergeOperator operator;
 
-	private static class Filter implements Serializable
+	private static final int KEYS_CHUNK_SIZE = 1000;
+
+	// the datastore will not run a query with more sub-queries than this
+	static final int MAXIMUM_COMBINATIONS = 30;
+
+	private static final int MAXIMUM_CONCURRENT_QUERIES = 10;
+
+	static class Filter implements Serializable
 	{
 		private static final long serialVersionUID = 1L;
 
@@ -62,6 +86,18 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 		String field;
 		FilterOperator operator;
 		Object value;
+		
+		// the class field of a parameter value which is encoded when bound
+		transient Field parameterField;
+		
+		Object getValue()
+		{
+			if (value instanceof Parameter)
+			{
+				throw new IllegalStateException("Parameter " + value + " must be bound with a template");
+			}
+			return value;
+		}
 	}
 
 	StandardCommonFindCommand(TranslatorObjectDatastore datastore, int initialActivaitonDepth)
@@ -85,6 +121,23 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 		Field field = fieldAndProperty.getFirst();
 		String property = fieldAndProperty.getSecond();
 
+		if (value instanceof Parameter)
+		{
+			// the value is encoded when the template is bound
+			Filter filter = new Filter(property, operator, value);
+			filter.parameterField = field;
+			addFilter(filter);
+		}
+		else
+		{
+			addFilterDirect(property, operator, encodeFilterValue(field, property, operator, value));
+		}
+
+		return (C) this;
+	}
+
+	Object encodeFilterValue(Field field, String property, FilterOperator operator, Object value)
+	{
 		PropertyTranslator translator = datastore.relation(field);
 
 		// for IN we need to encode each value of the collection
@@ -114,24 +167,47 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 			}
 
 		}
+		return encoded;
+	}
 
-		addFilterDirect(property, operator, encoded);
-
-		return (C) this;
+	// replaces parameter placeholders with their encoded values
+	void bindFilters(List<Filter> unbound, Map<String, ?> values)
+	{
+		filters = new ArrayList<Filter>(unbound.size());
+		for (Filter filter : unbound)
+		{
+			if (filter.value instanceof Parameter)
+			{
+				String name = ((Parameter) filter.value).getName();
+				if (!values.containsKey(name))
+				{
+					throw new IllegalArgumentException("No value for parameter " + name);
+				}
+				Object encoded = encodeFilterValue(filter.parameterField, filter.field, filter.operator, values.get(name));
+				filters.add(new Filter(filter.field, filter.operator, encoded));
+			}
+			else
+			{
+				filters.add(filter);
+			}
+		}
 	}
 
 	@SuppressWarnings("unchecked")
 	// by passes the search for object field in root type
 	public C addFilterDirect(String property, FilterOperator operator, Object value)
+	{
+		addFilter(new Filter(property, operator, value));
+		return (C) this;
+	}
+
+	private void addFilter(Filter filter)
 	{
 		if (filters == null)
 		{
 			filters = new ArrayList<Filter>(2);
 		}
-
-		filters.add(new Filter(property, operator, value));
-
-		return (C) this;
+		filters.add(filter);
 	}
 
 	// the value to filter must be the same as is encoded when the instance is stored
@@ -174,6 +250,10 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 		{
 			throw new IllegalStateException("Can only branch a command once");
 		}
+		if (operator == MergeOperator.AND && getRootCommand() != this)
+		{
+			throw new IllegalStateException("Only the root command can merge with AND");
+		}
 		this.operator = operator;
 		return (MergeFindCommand) this;
 	}
@@ -194,7 +274,7 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 	{
 		if (children == null)
 		{
-			return Collections.singleton(newQuery());
+			return splitInFilters(newQuery());
 		}
 		else
 		{
@@ -207,6 +287,65 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 		}
 	}
 
+	// branches with only equality filters can be combined into one query
+	boolean isComposable()
+	{
+		if (operator == MergeOperator.AND)
+		{
+			return false;
+		}
+		if (filters != null)
+		{
+			for (Filter filter : filters)
+			{
+				if (filter.operator != FilterOperator.EQUAL && filter.operator != FilterOperator.IN)
+				{
+					return false;
+				}
+			}
+		}
+		if (children != null)
+		{
+			for (StandardBranchFindCommand child : children)
+			{
+				// a branch without filters would match everything
+				if (child.filters == null && child.children == null || !child.isComposable())
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// the filters of this command and an OR of the filters of its branches
+	Query.Filter compositeFilter()
+	{
+		List<Query.Filter> subFilters = new ArrayList<Query.Filter>(2);
+		if (filters != null)
+		{
+			for (Filter filter : filters)
+			{
+				subFilters.add(new FilterPredicate(filter.field, filter.operator, filter.getValue()));
+			}
+		}
+		if (children != null)
+		{
+			List<Query.Filter> branchFilters = new ArrayList<Query.Filter>(children.size());
+			for (StandardBranchFindCommand child : children)
+			{
+				branchFilters.add(child.compositeFilter());
+			}
+			subFilters.add(branchFilters.size() == 1 ? branchFilters.get(0) : CompositeFilterOperator.or(branchFilters));
+		}
+		
+		if (subFilters.isEmpty())
+		{
+			return null;
+		}
+		return subFilters.size() == 1 ? subFilters.get(0) : CompositeFilterOperator.and(subFilters);
+	}
+
 	protected Collection<Query> getValidatedQueries()
 	{
 		Collection<Query> queries = queries();
@@ -225,7 +364,7 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 		{
 			for (Filter filter : filters)
 			{
-				query.addFilter(filter.field, filter.operator, filter.value);
+				query.addFilter(filter.field, filter.operator, filter.getValue());
 			}
 		}
 	}
@@ -251,10 +390,20 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
   }
 
 	protected QueryResultIterator<Entity> nowSingleQueryEntities(Query query)
+	{
+		return rememberQueryEntities(query, startQueryEntities(query, null));
+	}
+
+	boolean isRemembering()
+	{
+		return remember && datastore.getTransaction() == null;
+	}
+
+	// creating the iterator sends the first query request without waiting for results
+	private QueryResultIterator<Entity> startQueryEntities(Query query, Cursor startCursor)
 	{
 		// TODO move this into what is now BaseObjectDatastore
-		final boolean caching = remember && datastore.getTransaction() == null;
-		if (caching)
+		if (isRemembering())
 		{
 			// keys are stored in this cache and entities in the common entity cache so gets and puts
 			// remain synchronised
@@ -285,6 +434,12 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 		QueryResultIterator<Entity> entities;
 		PreparedQuery prepared = this.datastore.servicePrepare(query, getSettings());
 		FetchOptions fetchOptions = getRootCommand().getFetchOptions();
+		if (startCursor != null)
+		{
+			// continue this query of a merged find from where it was
+			fetchOptions = copyFetchOptions(fetchOptions).startCursor(startCursor);
+		}
+		
 		if (fetchOptions == null)
 		{
 			entities = prepared.asQueryResultIterator();
@@ -294,8 +449,14 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 			entities = prepared.asQueryResultIterator(fetchOptions);
 		}
 		datastore.statistics.queries++;
+		return datastore.cacheQueryResults(query, entities, fetchOptions, getSettings());
+	}
 
-		if (caching)
+	// waits for all results so must only be called after all queries are started
+	private QueryResultIterator<Entity> rememberQueryEntities(Query query, QueryResultIterator<Entity> entities)
+	{
+		// results that came from the cache have no cursor
+		if (isRemembering() && !(entities instanceof NoCursorQueryResultIterator<?>))
 		{
 			// cache all the keys from the entities
 			List<Entity> received = ImmutableList.copyOf(entities);
@@ -330,19 +491,532 @@ abstract class StandardCommonFindCommand<C extends StandardCommonFindCommand<C>>
 
 	protected Iterator<Entity> nowMultipleQueryEntities(Collection<Query> queries)
 	{
-		List<Iterator<Entity>> iterators = new ArrayList<Iterator<Entity>>(queries.size());
+		return nowMultipleQueryEntities(queries, null);
+	}
+
+	/**
+	 * @param cursor Updated with the position of each merged result or null to not track it
+	 */
+	protected Iterator<Entity> nowMultipleQueryEntities(Collection<Query> queries, final MergedCursor cursor)
+	{
+		if (cursor != null && cursor.size() != queries.size())
+		{
+			throw new IllegalArgumentException("Cursor is not from this find");
+		}
+		
+		// start every query before reading any results so they all run at the same time
+		List<QueryResultIterator<Entity>> started = new ArrayList<QueryResultIterator<Entity>>(queries.size());
 		for (Query query : queries)
 		{
-			Iterator<Entity> entities = nowSingleQueryEntities(query);
-			entities = applyEntityFilter(entities);
-			iterators.add(entities);
+			Cursor startCursor = cursor == null ? null : cursor.getCursor(started.size());
+			started.add(startQueryEntities(query, startCursor));
 		}
 
 		// all queries have the same sorts
 		Query query = queries.iterator().next();
-		List<SortPredicate> sorts = query.getSortPredicates();
-		Iterator<Entity> merged = mergeEntities(iterators, sorts);
-		return merged;
+		final List<SortPredicate> sorts = query.getSortPredicates();
+		
+		if (cursor == null)
+		{
+			List<Iterator<Entity>> iterators = new ArrayList<Iterator<Entity>>(queries.size());
+			Iterator<QueryResultIterator<Entity>> startedIterator = started.iterator();
+			for (Query branch : queries)
+			{
+				Iterator<Entity> entities = rememberQueryEntities(branch, startedIterator.next());
+				entities = applyEntityFilter(entities);
+				iterators.add(entities);
+			}
+			return mergeEntities(iterators, sorts);
+		}
+		else
+		{
+			// remember which query each entity came from and the cursor after it
+			List<Iterator<CursoredEntity>> iterators = new ArrayList<Iterator<CursoredEntity>>(queries.size());
+			for (final QueryResultIterator<Entity> entities : started)
+			{
+				final int index = iterators.size();
+				Iterator<Entity> filtered = applyEntityFilter(entities);
+				iterators.add(Iterators.transform(filtered, new Function<Entity, CursoredEntity>()
+				{
+					@Override
+					public CursoredEntity apply(Entity entity)
+					{
+						return new CursoredEntity(entity, index, entities.getCursor());
+					}
+				}));
+			}
+			
+			final Comparator<Entity> comparator = EntityComparatorAccessor.newEntityComparator(sorts);
+			Comparator<CursoredEntity> cursoredComparator = new Comparator<CursoredEntity>()
+			{
+				@Override
+				public int compare(CursoredEntity o1, CursoredEntity o2)
+				{
+					return comparator.compare(o1.entity, o2.entity);
+				}
+			};
+			Iterator<CursoredEntity> merged = new SortedMergeIterator<CursoredEntity>(cursoredComparator, iterators);
+			
+			// skip results that were returned before the cursor
+			final Entity last = cursor.getLast();
+			if (last != null)
+			{
+				merged = Iterators.filter(merged, new Predicate<CursoredEntity>()
+				{
+					@Override
+					public boolean apply(CursoredEntity input)
+					{
+						return comparator.compare(input.entity, last) > 0;
+					}
+				});
+			}
+			
+			return Iterators.transform(merged, new Function<CursoredEntity, Entity>()
+			{
+				@Override
+				public Entity apply(CursoredEntity input)
+				{
+					cursor.advance(input.index, input.cursor, input.entity, sorts);
+					return input.entity;
+				}
+			});
+		}
+	}
+
+	private static class CursoredEntity
+	{
+		final Entity entity;
+		final int index;
+		final Cursor cursor;
+
+		CursoredEntity(Entity entity, int index, Cursor cursor)
+		{
+			this.entity = entity;
+			this.index = index;
+			this.cursor = cursor;
+		}
+	}
+
+	static FetchOptions copyFetchOptions(FetchOptions options)
+	{
+		FetchOptions copy = FetchOptions.Builder.withDefaults();
+		if (options != null)
+		{
+			if (options.getLimit() != null) copy.limit(options.getLimit());
+			if (options.getOffset() != null) copy.offset(options.getOffset());
+			if (options.getChunkSize() != null) copy.chunkSize(options.getChunkSize());
+			if (options.getPrefetchSize() != null) copy.prefetchSize(options.getPrefetchSize());
+			if (options.getStartCursor() != null) copy.startCursor(options.getStartCursor());
+			if (options.getEndCursor() != null) copy.endCursor(options.getEndCursor());
+		}
+		return copy;
+	}
+
+	// keys that are in the results of every branch in the order of the keys
+	protected Iterator<Key> nowIntersectedKeys()
+	{
+		return applyFetchOptions(startIntersectedKeys());
+	}
+
+	private Iterator<Key> startIntersectedKeys()
+	{
+		// start every query before reading any results so they all run at the same time
+		List<Iterator<Key>> iterators = new ArrayList<Iterator<Key>>(children.size());
+		for (StandardBranchFindCommand child : children)
+		{
+			if (child.children != null)
+			{
+				throw new IllegalStateException("Cannot merge branches of an AND merge");
+			}
+			
+			// in key order so no custom indexes are needed
+			Collection<Query> queries = child.queries();
+			for (Query query : queries)
+			{
+				checkKeyOrderFilters(query);
+			}
+			if (queries.size() == 1)
+			{
+				iterators.add(startKeysOnlyQuery(queries.iterator().next(), true));
+			}
+			else
+			{
+				// the branch has a large IN filter that was split
+				List<Iterator<Key>> split = new ArrayList<Iterator<Key>>(queries.size());
+				for (Query query : queries)
+				{
+					split.add(startKeysOnlyQuery(query, true));
+				}
+				iterators.add(new SortedMergeIterator<Key>(Ordering.<Key>natural(), split));
+			}
+		}
+		
+		return new SortedIntersectionIterator<Key>(Ordering.<Key>natural(), iterators);
+	}
+
+	// an inequality filter needs its property sorted first so results would not be in key order
+	private static void checkKeyOrderFilters(Query query)
+	{
+		for (FilterPredicate predicate : query.getFilterPredicates())
+		{
+			FilterOperator operator = predicate.getOperator();
+			if (operator != FilterOperator.EQUAL && operator != FilterOperator.IN)
+			{
+				throw new IllegalStateException("Cannot use inequality filter on " + 
+						predicate.getPropertyName() + " with an AND merge");
+			}
+		}
+	}
+
+	protected Iterator<Entity> nowIntersectedQueryEntities(Collection<Query> queries)
+	{
+		// all queries have the same sorts which must be applied to all results
+		List<SortPredicate> sorts = queries.iterator().next().getSortPredicates();
+		Iterator<Entity> entities;
+		if (sorts.isEmpty())
+		{
+			entities = keysToEntityIterator(nowIntersectedKeys());
+		}
+		else
+		{
+			// the page can only be taken once all results are sorted
+			List<Entity> sorted = Lists.newArrayList(keysToEntityIterator(startIntersectedKeys()));
+			Collections.sort(sorted, EntityComparatorAccessor.newEntityComparator(sorts));
+			entities = applyFetchOptions(sorted.iterator());
+		}
+		
+		return applyEntityFilter(entities);
+	}
+
+	// keys that are in the results of any query without duplicates in no particular order
+	protected Iterator<Key> nowUnitedKeys(Collection<Query> queries)
+	{
+		final Iterator<Query> remaining = queries.iterator();
+		final LinkedList<Iterator<Key>> started = new LinkedList<Iterator<Key>>();
+		while (remaining.hasNext() && started.size() < MAXIMUM_CONCURRENT_QUERIES)
+		{
+			started.add(startKeysOnlyQuery(remaining.next(), false));
+		}
+		
+		// start another query each time one is read so only a few run at the same time
+		Iterator<Key> keys = Iterators.concat(new AbstractIterator<Iterator<Key>>()
+		{
+			@Override
+			protected Iterator<Key> computeNext()
+			{
+				if (started.isEmpty())
+				{
+					return endOfData();
+				}
+				Iterator<Key> next = started.removeFirst();
+				if (remaining.hasNext())
+				{
+					started.add(startKeysOnlyQuery(remaining.next(), false));
+				}
+				return next;
+			}
+		});
+		
+		final Set<Key> seen = new HashSet<Key>();
+		keys = Iterators.filter(keys, new Predicate<Key>()
+		{
+			@Override
+			public boolean apply(Key input)
+			{
+				return seen.add(input);
+			}
+		});
+		
+		return applyFetchOptions(keys);
+	}
+
+	protected Iterator<Entity> nowUnitedQueryEntities(Collection<Query> queries)
+	{
+		return applyEntityFilter(keysToEntityIterator(nowUnitedKeys(queries)));
+	}
+
+	@SuppressWarnings("deprecation")
+	private Iterator<Key> startKeysOnlyQuery(Query query, boolean keyOrder)
+	{
+		// same filters as the query but without sorts
+		Query keysQuery = new Query(query.getKind(), query.getAncestor());
+		for (FilterPredicate predicate : query.getFilterPredicates())
+		{
+			keysQuery.addFilter(predicate.getPropertyName(), predicate.getOperator(), predicate.getValue());
+		}
+		if (keyOrder)
+		{
+			keysQuery.addSort(Entity.KEY_RESERVED_PROPERTY);
+		}
+		keysQuery.setKeysOnly();
+		
+		PreparedQuery prepared = datastore.servicePrepare(keysQuery, getSettings());
+		Iterator<Entity> entities = prepared.asQueryResultIterator(FetchOptions.Builder
+				.withChunkSize(KEYS_CHUNK_SIZE)
+				.prefetchSize(KEYS_CHUNK_SIZE));
+		datastore.statistics.queries++;
+		
+		return Iterators.transform(entities, TranslatorObjectDatastore.entityToKeyFunction);
+	}
+
+	// the fetch options apply to the combined results
+	private <E> Iterator<E> applyFetchOptions(Iterator<E> results)
+	{
+		FetchOptions fetchOptions = getRootCommand().getFetchOptions();
+		if (fetchOptions != null)
+		{
+			if (fetchOptions.getOffset() != null)
+			{
+				Iterators.advance(results, fetchOptions.getOffset());
+			}
+			if (fetchOptions.getLimit() != null)
+			{
+				results = Iterators.limit(results, fetchOptions.getLimit());
+			}
+		}
+		return results;
+	}
+
+	private int getKeysChunkSize()
+	{
+		int chunk = FetchOptions.DEFAULT_CHUNK_SIZE;
+		FetchOptions fetchOptions = getRootCommand().getFetchOptions();
+		if (fetchOptions != null && fetchOptions.getChunkSize() != null)
+		{
+			// returnAll fetches everything in one chunk
+			chunk = Math.min(fetchOptions.getChunkSize(), KEYS_CHUNK_SIZE);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Runs the query keys-only and gets each chunk of entities from memory,
+	 * memcache and then the datastore so cached entities are not sent again.
+	 */
+	protected QueryResultIterator<Entity> nowSingleQueryCachedEntities(Query query)
+	{
+		query.setKeysOnly();
+		return new CachedEntityIterator(startQueryEntities(query, null), getKeysChunkSize());
+	}
+
+	private class CachedEntityIterator implements QueryResultIterator<Entity>
+	{
+		private final QueryResultIterator<Entity> keys;
+		private final int chunk;
+		private Iterator<Pair<Entity, Cursor>> current = Iterators.emptyIterator();
+		private Cursor cursor;
+
+		CachedEntityIterator(QueryResultIterator<Entity> keys, int chunk)
+		{
+			this.keys = keys;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (!current.hasNext() && keys.hasNext())
+			{
+				if (cursor == null)
+				{
+					// the start position before any keys are read ahead
+					cursor = keys.getCursor();
+				}
+				
+				// remember the cursor after each key because the keys are read ahead
+				List<Key> chunkKeys = new ArrayList<Key>(chunk);
+				List<Cursor> cursors = new ArrayList<Cursor>(chunk);
+				while (keys.hasNext() && chunkKeys.size() < chunk)
+				{
+					chunkKeys.add(keys.next().getKey());
+					cursors.add(keys.getCursor());
+				}
+				
+				Map<Key, Entity> keysToEntities = keysToEntities(chunkKeys);
+				List<Pair<Entity, Cursor>> ordered = new ArrayList<Pair<Entity, Cursor>>(chunkKeys.size());
+				for (int i = 0; i < chunkKeys.size(); i++)
+				{
+					// may have been deleted since the query
+					Entity entity = keysToEntities.get(chunkKeys.get(i));
+					if (entity != null)
+					{
+						ordered.add(new Pair<Entity, Cursor>(entity, cursors.get(i)));
+					}
+				}
+				current = ordered.iterator();
+			}
+			return current.hasNext();
+		}
+
+		@Override
+		public Entity next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			Pair<Entity, Cursor> next = current.next();
+			cursor = next.getSecond();
+			return next.getFirst();
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Cursor getCursor()
+		{
+			// the cursor of the last key includes any deleted entities after it
+			if (cursor == null || !current.hasNext() && !keys.hasNext())
+			{
+				return keys.getCursor();
+			}
+			return cursor;
+		}
+
+		@Override
+		public List<Index> getIndexList()
+		{
+			return keys.getIndexList();
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private Iterator<Entity> keysToEntityIterator(Iterator<Key> keys)
+	{
+		if (isUnactivated())
+		{
+			return Iterators.transform(keys, new Function<Key, Entity>()
+			{
+				@Override
+				public Entity apply(Key key)
+				{
+					// create an empty entity just to return the key
+					return new Entity(key);
+				}
+			});
+		}
+		
+		// bulk get only the matching entities through the cache
+		Iterator<List<Key>> chunks = Iterators.partition(keys, getKeysChunkSize());
+		return Iterators.concat(Iterators.transform(chunks, new Function<List<Key>, Iterator<Entity>>()
+		{
+			@Override
+			public Iterator<Entity> apply(List<Key> chunk)
+			{
+				Map<Key, Entity> keysToEntities = keysToEntities(chunk);
+				List<Entity> ordered = new ArrayList<Entity>(chunk.size());
+				for (Key key : chunk)
+				{
+					// may have been deleted since the query
+					Entity entity = keysToEntities.get(key);
+					if (entity != null)
+					{
+						ordered.add(entity);
+					}
+				}
+				return ordered.iterator();
+			}
+		}));
+	}
+
+	// the number of sub-queries the datastore will run for the IN filters
+	@SuppressWarnings("deprecation")
+	private static int combinations(Query query)
+	{
+		int combinations = 1;
+		for (FilterPredicate predicate : query.getFilterPredicates())
+		{
+			if (predicate.getOperator() == FilterOperator.IN)
+			{
+				combinations *= ((Collection<?>) predicate.getValue()).size();
+			}
+		}
+		return combinations;
+	}
+
+	// splits the largest IN filter until each query has few enough sub-queries
+	@SuppressWarnings("deprecation")
+	static List<Query> splitInFilters(Query query)
+	{
+		int combinations = combinations(query);
+		if (combinations <= MAXIMUM_COMBINATIONS)
+		{
+			return Collections.singletonList(query);
+		}
+		
+		FilterPredicate largest = null;
+		for (FilterPredicate predicate : query.getFilterPredicates())
+		{
+			if (predicate.getOperator() == FilterOperator.IN && (largest == null ||
+					((Collection<?>) predicate.getValue()).size() > ((Collection<?>) largest.getValue()).size()))
+			{
+				largest = predicate;
+			}
+		}
+		
+		// split queries are read by key which would lose the projected values
+		if (!query.getProjections().isEmpty())
+		{
+			throw new IllegalStateException("Cannot split IN filter on " + 
+					largest.getPropertyName() + " of a projection query");
+		}
+		
+		Collection<?> values = (Collection<?>) largest.getValue();
+		int others = combinations / values.size();
+		int size = Math.max(1, MAXIMUM_COMBINATIONS / others);
+		
+		List<Query> split = new ArrayList<Query>();
+		for (List<?> part : Iterables.partition(values, size))
+		{
+			Query partQuery = new Query(query.getKind(), query.getAncestor());
+			for (FilterPredicate predicate : query.getFilterPredicates())
+			{
+				Object value = predicate == largest ? part : predicate.getValue();
+				partQuery.addFilter(predicate.getPropertyName(), predicate.getOperator(), value);
+			}
+			for (SortPredicate sort : query.getSortPredicates())
+			{
+				partQuery.addSort(sort.getPropertyName(), sort.getDirection());
+			}
+			if (query.isKeysOnly())
+			{
+				partQuery.setKeysOnly();
+			}
+			
+			// other IN filters may still need to be split
+			split.addAll(splitInFilters(partQuery));
+		}
+		return split;
+	}
+
+	static int combinations(Query.Filter filter)
+	{
+		if (filter instanceof FilterPredicate)
+		{
+			FilterPredicate predicate = (FilterPredicate) filter;
+			return predicate.getOperator() == FilterOperator.IN ? ((Collection<?>) predicate.getValue()).size() : 1;
+		}
+		else
+		{
+			CompositeFilter composite = (CompositeFilter) filter;
+			int combinations = composite.getOperator() == CompositeFilterOperator.AND ? 1 : 0;
+			for (Query.Filter sub : composite.getSubFilters())
+			{
+				if (composite.getOperator() == CompositeFilterOperator.AND)
+				{
+					combinations *= combinations(sub);
+				}
+				else
+				{
+					combinations += combinations(sub);
+				}
+			}
+			return combinations;
+		}
 	}
 
 //	private Future<Iterator<Entity>> futureEntityIteratorsToFutureMergedIterator(
@@ -19,8 +19,7 @@ abstract class StandardCommonParentsCommand<P> extends
 
 	public Future<Iterator<P>> returnParentsLater()
 	{
-		// TODO depends on async get being implemented
-		throw new UnsupportedOperationException("Not implemented yet - depends on async get");
+		return later();
 	}
 
 	protected int getFetchSize()
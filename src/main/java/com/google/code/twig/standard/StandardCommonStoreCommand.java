@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -15,7 +16,6 @@ import java.util.Set;
 import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.AsyncDatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
@@ -33,8 +33,10 @@ import com.google.code.twig.util.Pair;
 import com.google.code.twig.util.reference.ObjectReference;
 import com.google.code.twig.util.reference.SimpleObjectReference;
 import com.google.common.base.Predicates;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
 import com.google.common.primitives.Primitives;
 
 abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreCommand<T, C>> extends StandardEncodeCommand implements CommonStoreCommand<T, C>
@@ -44,10 +46,17 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 	List<?> ids;
 	Key parentKey;
 	boolean unique;
+	boolean graph;
 	
 	// a set of instances already updated during a cascading update
 	Set<Object> cascaded;
 	Date date;
+	
+	// encoded state of each instance to remember once it is stored
+	private Map<Object, HashCode> snapshots;
+	
+	// instances to backup which were associated before they were encoded
+	Set<Object> updated;
 
 	StandardCommonStoreCommand(StandardStoreCommand command)
 	{
@@ -80,6 +89,57 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 		return (C) this;
 	}
 
+	public final C graph()
+	{
+		return graph(true);
+	}
+
+	@SuppressWarnings("unchecked")
+	final C graph(boolean graph)
+	{
+		this.graph = graph;
+		return (C) this;
+	}
+
+	/**
+	 * Related instances are batched while the graph is encoded and then put
+	 * together when the batch is flushed
+	 * 
+	 * @return true if this command started the batch
+	 */
+	final boolean startGraph()
+	{
+		if (graph && !datastore.isBatching())
+		{
+			datastore.startBatchMode(true);
+			return true;
+		}
+		return false;
+	}
+
+	final void finishGraph(boolean started, boolean encoded)
+	{
+		if (started)
+		{
+			if (encoded)
+			{
+				try
+				{
+					datastore.stopBatchMode();
+				}
+				catch (RuntimeException e)
+				{
+					datastore.discardBatchedOperations();
+					throw e;
+				}
+			}
+			else
+			{
+				datastore.discardBatchedOperations();
+			}
+		}
+	}
+
 	final Transaction unique(Collection<Entity> entities)
 	{
 		Transaction txn = null;
@@ -166,13 +226,65 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 		final Map<Object, Entity> entities = instancesToEntities();
 
 		// we can get null entities when they are already stored
-		Collection<Entity> filtered = Collections2.filter(entities.values(), Predicates.notNull());
+		Map<Object, Entity> filtered = Maps.filterValues(entities, Predicates.notNull());
 
-		Transaction transaction = datastore.getTransaction();
+		// versions are checked and backups put in a transaction committed with the put
+		Transaction checked = null;
+		try
+		{
+			checked = version(filtered);
+			
+			if (updated != null)
+			{
+				checked = backup(Maps.filterKeys(filtered, Predicates.in(updated)), checked);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			if (checked != null && checked.isActive())
+			{
+				checked.rollback();
+			}
+			throw e;
+		}
+		final Transaction txn = checked;
+
+		Transaction transaction = datastore.serviceTransaction();
+		if (transaction != null)
+		{
+			for (Entity entity : filtered.values())
+			{
+				datastore.recordTransactionKind(entity.getKind());
+			}
+		}
 
 		// actually put the entities in the datastore without blocking
-		AsyncDatastoreService service = DatastoreServiceFactory.getAsyncDatastoreService();
-		final Future<List<Key>> put = service.put(transaction, new ArrayList<Entity>(filtered));
+		AsyncDatastoreService service = datastore.asyncService(datastore.getDefaultSettings());
+		datastore.statistics.datastorePuts++;
+		final Future<List<Key>> put = datastore.watchContention(transaction, 
+				service.put(transaction, new ArrayList<Entity>(filtered.values())));
+
+		// commit now so the transaction is not left open until get() is called
+		final Future<Void> commit;
+		if (txn != null)
+		{
+			try
+			{
+				commit = txn.commitAsync();
+			}
+			catch (RuntimeException e)
+			{
+				if (txn.isActive())
+				{
+					txn.rollback();
+				}
+				throw e;
+			}
+		}
+		else
+		{
+			commit = null;
+		}
 
 		return new FutureWrapper<List<Key>, Map<T,Key>>(put)
 		{
@@ -185,6 +297,10 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 			@Override
 			protected Map<T, Key> wrap(List<Key> keys) throws Exception
 			{
+				if (commit != null)
+				{
+					commit.get();
+				}
 				return createKeyMapAndUpdateKeyCache(entities, keys);
 			}
 		};
@@ -208,10 +324,14 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 		Collection<Entity> uniques = null;
 		for (T instance : instances)
 		{
-			// TODO implement bulk version checking and bulk backup
-			if (instance.getClass().isAnnotationPresent(Backup.class))
+			// only updated instances are backed up
+			if (instance.getClass().isAnnotationPresent(Backup.class) && datastore.isAssociated(instance))
 			{
-				throw new UnsupportedOperationException("Backup multiple instances not implemented");
+				if (updated == null)
+				{
+					updated = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+				}
+				updated.add(instance);
 			}
 			
 			// TODO check instance was not stored while storing another instance
@@ -275,6 +395,8 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 				datastore.keyCache.cache(key, instance, 1);
 			}
 		}
+		
+		saveSnapshots();
 		return new HashMap((Map<T, Key>) result);
 	}
 
@@ -287,7 +409,12 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 		Entity entity = instanceToEntity(instance, parentKey, id);
 		
 		Key key;
-		if (datastore.associating)
+		if (entity == null)
+		{
+			// an unchanged instance does not need to be put again
+			key = datastore.associatedKey(instance);
+		}
+		else if (datastore.associating)
 		{
 			// just return key from entity with no datastore operation
 			key = entity.getKey();
@@ -307,7 +434,7 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 				if (update)
 				{
 					// one of these might start a transaction
-					txn = backup(instance, entity.getKey(), txn);
+					txn = backup(ImmutableMap.of(instance, entity), txn);
 				}
 				else
 				{
@@ -317,8 +444,15 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 					}
 				}
 				
-				// TODO allow command to override settings
-				key = datastore.servicePut(entity, datastore.getDefaultSettings());
+				if (txn == null)
+				{
+					// TODO allow command to override settings
+					key = datastore.servicePut(entity, datastore.getDefaultSettings());
+				}
+				else
+				{
+					key = Iterables.getOnlyElement(put(Collections.singleton(entity), txn));
+				}
 				
 				if (txn != null)
 				{
@@ -338,44 +472,122 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 		return key;
 	}
 
-	private Transaction backup(Object instance, Key key, Transaction txn)
+	/**
+	 * Reads the existing entities of all updated instances in one bulk get and
+	 * puts a copy of each as a child backup entity in one bulk put
+	 */
+	final Transaction backup(Map<Object, Entity> instanceToEntity, Transaction txn)
 	{
-		if (instance.getClass().isAnnotationPresent(Backup.class))
+		List<Key> keys = new ArrayList<Key>(instanceToEntity.size());
+		for (Entry<Object, Entity> instanceAndEntity : instanceToEntity.entrySet())
 		{
-			if (txn == null)
+			if (instanceAndEntity.getKey().getClass().isAnnotationPresent(Backup.class))
 			{
-				txn = datastore.beginOrJoinTransaction();
+				keys.add(instanceAndEntity.getValue().getKey());
 			}
-			
-			try
-			{
-				Entity existing = datastore.serviceGet(key, datastore.getDefaultSettings());
-				
-				Entity backup = new Entity("backup", key);
-				backup.setPropertiesFrom(existing);
-				
-				// set the same date for all entities in this command
-				assert date != null;
-				backup.setProperty("backedup", date);
-				
-				datastore.servicePut(backup, datastore.getDefaultSettings());
-				
-				return txn;
-			}
-			catch (EntityNotFoundException e)
+		}
+		
+		if (keys.isEmpty())
+		{
+			return txn;
+		}
+		
+		if (txn == null)
+		{
+			txn = datastore.beginOrJoinTransaction();
+		}
+		
+		Map<Key, Entity> existing = getInTransaction(keys, txn);
+
+		// set the same date for all entities in this command
+		Date backedup = date == null ? new Date() : date;
+		
+		List<Entity> backups = new ArrayList<Entity>(keys.size());
+		for (Key key : keys)
+		{
+			Entity entity = existing.get(key);
+			if (entity == null)
 			{
 				txn.rollback();
 				throw new IllegalStateException("Cannot find entity to backup " + key);
 			}
+			
+			Entity backup = new Entity("backup", key);
+			backup.setPropertiesFrom(entity);
+			backup.setProperty("backedup", backedup);
+			backups.add(backup);
 		}
+		
+		put(backups, txn);
+		
 		return txn;
 	}
 
+	/**
+	 * Entities checked in a transaction are put in it even while a graph is
+	 * batched so the checks are committed together with the write
+	 */
+	final List<Key> put(Collection<Entity> entities, Transaction txn)
+	{
+		// TODO allow command to override settings
+		if (txn == null)
+		{
+			return datastore.servicePut(entities, datastore.getDefaultSettings());
+		}
+		else
+		{
+			return datastore.serviceTransactionPut(entities, datastore.getDefaultSettings());
+		}
+	}
+
+	private Map<Key, Entity> getInTransaction(List<Key> keys, Transaction txn)
+	{
+		try
+		{
+			return datastore.serviceGet(keys, datastore.getDefaultSettings());
+		}
+		catch (RuntimeException e)
+		{
+			// the caller does not have the transaction to roll back yet
+			if (txn.isActive())
+			{
+				txn.rollback();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks the versions of all versioned instances not yet checked in this 
+	 * session with one bulk get and then increments them
+	 */
 	protected Transaction version(Map<Object, Entity> instanceToEntity)
 	{
 		Transaction txn = null;
-		Set<Entry<Object, Entity>> instanceAndEntities = instanceToEntity.entrySet();
-		for (Entry<Object, Entity> instanceAndEntity : instanceAndEntities)
+		
+		// find the versioned instances that need to be checked
+		List<Key> unchecked = null;
+		for (Entry<Object, Entity> instanceAndEntity : instanceToEntity.entrySet())
+		{
+			Object instance = instanceAndEntity.getKey();
+			if (instance.getClass().isAnnotationPresent(Version.class) && datastore.version(instance) < 0)
+			{
+				if (unchecked == null)
+				{
+					unchecked = new ArrayList<Key>();
+				}
+				unchecked.add(instanceAndEntity.getValue().getKey());
+			}
+		}
+		
+		Map<Key, Entity> existing = null;
+		if (unchecked != null)
+		{
+			txn = datastore.beginOrJoinTransaction();
+			existing = getInTransaction(unchecked, txn);
+		}
+		
+		for (Entry<Object, Entity> instanceAndEntity : instanceToEntity.entrySet())
 		{
 			Object instance = instanceAndEntity.getKey();
 			Entity entity = instanceAndEntity.getValue();
@@ -388,34 +600,27 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 				// if version is positive it was checked in this session
 				if (current < 0)
 				{
-					if (txn == null) 
+					// load existing entity to get current version
+					Entity stored = existing.get(entity.getKey());
+					if (stored == null)
 					{
-						txn = datastore.beginOrJoinTransaction();
+						txn.rollback();
+						throw new IllegalArgumentException("Update missing entity " + entity.getKey());
 					}
 					
-					try
+					Long version = readEntityVersion(stored, instance.getClass());
+					if (version == null)
 					{
-						// load existing entity to get current version
-						Entity existing = datastore.serviceGet(entity.getKey(), datastore.getDefaultSettings());
-						Long version = readEntityVersion(existing, instance.getClass());
-						if (version == null)
-						{
-							// allow unversioned types to become versioned
-							version = 1l;
-						}
-						
-						// change to positive to indicate we checked it in this session
-						current = -current;
-						
-						if (current != version)
-						{
-							throw new IllegalStateException("Versions not equal " + version + ":" + current);
-						}
+						// allow unversioned types to become versioned
+						version = 1l;
 					}
-					catch (EntityNotFoundException e)
+					
+					// change to positive to indicate we checked it in this session
+					current = -current;
+					
+					if (current != version)
 					{
-						txn.rollback();
-						throw new IllegalArgumentException("Update missing entity " + entity.getKey());
+						throw new IllegalStateException("Versions not equal " + version + ":" + current);
 					}
 				}
 				
@@ -444,7 +649,8 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 		datastore.encodeKeyDetails = new KeyDetails(kind, parentKey, id);
 
 		// if we are updating the key is already in the key cache
-		if (isUpdateCommand(instance) || datastore.isAssociated(instance))
+		boolean updating = isUpdateCommand(instance) || datastore.isAssociated(instance);
+		if (updating)
 		{
 			// get the key associated with this instance
 			Key associatedKey = datastore.associatedKey(instance);
@@ -505,6 +711,12 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 			throw new IllegalStateException("Could not translate instance: " + instance);
 		}
 
+		// the id field and parent are now known so we can allocate an id
+		if (!isUpdateCommand(instance) && datastore.associating == false)
+		{
+			maybeSetBatchAllocatedId(instance);
+		}
+
 		// the key will now be set with id and ancestors
 		Entity entity = createEntity();
 
@@ -522,6 +734,22 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 
 		// pop the encode context
 		datastore.encodeKeyDetails = existingEncodeKeySpec;
+		
+		if (datastore.getDefaultSettings().isDirtyChecking() && !datastore.associating)
+		{
+			HashCode snapshot = EntitySnapshot.hash(entity, instance.getClass());
+			if (updating && snapshot.equals(datastore.keyCache.getSnapshot(instance)))
+			{
+				// nothing changed since it was loaded or stored
+				return null;
+			}
+			
+			if (snapshots == null)
+			{
+				snapshots = new IdentityHashMap<Object, HashCode>();
+			}
+			snapshots.put(instance, snapshot);
+		}
 
 		// check that id field is numeric if auto-generating id
 		Field idField = datastore.idField(instance.getClass());
@@ -536,50 +764,73 @@ abstract class StandardCommonStoreCommand<T, C extends StandardCommonStoreComman
 		return entity;
 	}
 
+	/**
+	 * Only called once the entities are put so a failed put is not mistaken
+	 * for an unchanged instance by the next update
+	 */
+	final void saveSnapshots()
+	{
+		if (snapshots != null)
+		{
+			datastore.saveSnapshots(snapshots);
+			snapshots = null;
+		}
+	}
+
 	private void maybeSetAllocatedId(Object instance)
 	{
-		Key parentKey;
 		long allocateIdsForType = datastore.getConfiguration().allocateIdsFor(instance.getClass());
 		if (allocateIdsForType > 0)
 		{
 			if (datastore.encodeKeyDetails.getId() == null)
 			{
-				parentKey = null;
-				ObjectReference<Key> parentKeyReference = datastore.encodeKeyDetails.getParentKeyReference();
-				StringBuilder kindAndParentBuilder = new StringBuilder();
-				kindAndParentBuilder.append(datastore.encodeKeyDetails.getKind());
-				if (parentKeyReference != null)
-				{
-					parentKey = parentKeyReference.get();
-					kindAndParentBuilder.append(parentKey.toString());
-				}
+				// get the id from the key - the rest of the key spec should be the same
+				datastore.encodeKeyDetails.setId(allocateId(allocateIdsForType));
+			}
+		}
+	}
 
-				String kindAndParent = kindAndParentBuilder.toString();
-				Iterator<Key> range = null;
-				if (datastore.allocatedIdRanges == null)
-				{
-					datastore.allocatedIdRanges = new HashMap<String, Iterator<Key>>();
-				}
-				else
+	/**
+	 * Batched entities are only put when the batch is flushed so auto-generated 
+	 * ids would not be known until then. Allocating them now gives a complete 
+	 * key to return and for referencing instances to use. Entities put in a 
+	 * transaction are also only sent when it is committed.
+	 */
+	private void maybeSetBatchAllocatedId(Object instance)
+	{
+		if ((datastore.allocateBatchedIds || datastore.isBuffering()) && !datastore.encodeKeyDetails.isComplete())
+		{
+			// only numeric ids can be auto-generated
+			Field idField = datastore.idField(instance.getClass());
+			if (idField == null 
+					|| idField.getType().isPrimitive() 
+					|| Number.class.isAssignableFrom(idField.getType()))
+			{
+				long allocateIdsForType = datastore.getConfiguration().allocateIdsFor(instance.getClass());
+				if (allocateIdsForType <= 0)
 				{
-					range = datastore.allocatedIdRanges.get(kindAndParent);
+					allocateIdsForType = BATCH_ALLOCATE_IDS_BY;
 				}
+				datastore.encodeKeyDetails.setId(allocateId(allocateIdsForType));
+			}
+		}
+	}
 
-				if (range == null || range.hasNext() == false)
-				{
-					range = datastore.getDefaultService().allocateIds(
-									parentKey,
-									datastore.encodeKeyDetails.getKind(),
-									allocateIdsForType)
-									.iterator();
-
-					datastore.allocatedIdRanges.put(kindAndParent, range);
-				}
+	// ids allocated at a time for new instances in batch mode
+	private static final long BATCH_ALLOCATE_IDS_BY = 20;
 
-				// get the id from the key - the rest of the key spec should be the same
-				datastore.encodeKeyDetails.setId(range.next().getId());
-			}
+	private long allocateId(long allocateIdsBy)
+	{
+		Key parentKey = null;
+		ObjectReference<Key> parentKeyReference = datastore.encodeKeyDetails.getParentKeyReference();
+		if (parentKeyReference != null)
+		{
+			parentKey = parentKeyReference.get();
 		}
+
+		// ranges are shared by all datastores and refilled in the background
+		AsyncDatastoreService service = datastore.asyncService(datastore.getDefaultSettings());
+		return IdAllocator.allocateId(service, parentKey, datastore.encodeKeyDetails.getKind(), allocateIdsBy);
 	}
 	
 	@SuppressWarnings("unchecked")
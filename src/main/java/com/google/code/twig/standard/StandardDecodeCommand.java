@@ -8,11 +8,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.RawValue;
 import com.google.appengine.api.datastore.ReadPolicy.Consistency;
 import com.google.code.twig.LoadCommand.CacheMode;
 import com.google.code.twig.Path;
@@ -20,9 +22,13 @@ import com.google.code.twig.Property;
 import com.google.code.twig.PropertyTranslator;
 import com.google.code.twig.Restriction;
 import com.google.code.twig.Settings;
+import com.google.code.twig.util.LazyFutureWrapper;
 import com.google.code.twig.util.PropertySets;
 import com.google.code.twig.util.RestrictionToPredicateAdaptor;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 
 @SuppressWarnings("unchecked")
 class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends StandardCommand
@@ -89,6 +95,33 @@ class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends Standard
 			}
 		}
 	
+		Class<?> type = datastore.getConfiguration().kindToType(entity.getKind());
+		instance = decodeEntity(entity, type, restriction);
+		
+		// set the cached version number
+		Long version = readEntityVersion(entity, type);
+		if (version != null)
+		{
+			assert version > 0;
+			datastore.keyCache.setVersion(instance, version);
+		}
+		else if (depth >= 0 && !datastore.isActivated(instance))
+		{
+			// set the version to 1 for activated non-versioned instances
+			datastore.keyCache.setVersion(instance, 1);
+		}
+		
+		// remember the loaded state so unchanged instances are not updated
+		if (depth >= 0 && datastore.getDefaultSettings().isDirtyChecking())
+		{
+			datastore.keyCache.setSnapshot(instance, EntitySnapshot.hash(entity, type));
+		}
+
+		return instance;
+	}
+
+	private Object decodeEntity(Entity entity, Class<?> type, Restriction<Property> restriction)
+	{
 		// push new decode context state
 		Key existingDecodeKey = datastore.decodeKey;
 		datastore.decodeKey = entity.getKey();
@@ -97,8 +130,6 @@ class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends Standard
 		// the activation depth may change while decoding a field value
 		int existingActivationDepth = depth;
 		
-		Class<?> type = datastore.getConfiguration().kindToType(entity.getKind());
-
 		Set<Property> properties = PropertySets.create(entity.getProperties(), false);
 		
 		// filter out unwanted properties at this low level
@@ -112,13 +143,19 @@ class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends Standard
 		sorted.addAll(properties);
 		properties = sorted;
 
-		PropertyTranslator decoder = datastore.decoder(entity);
-		instance = decoder.decode(properties, Path.EMPTY_PATH, type);
-		
-		// pop the decode context after decode
-		datastore.decodeKey = existingDecodeKey;
-		depth = existingActivationDepth;
-		datastore.command = existingCommand;
+		Object instance;
+		try
+		{
+			PropertyTranslator decoder = datastore.decoder(entity);
+			instance = decoder.decode(properties, Path.EMPTY_PATH, type);
+		}
+		finally
+		{
+			// pop the decode context after decode
+			datastore.decodeKey = existingDecodeKey;
+			depth = existingActivationDepth;
+			datastore.command = existingCommand;
+		}
 		
 		// null signifies that the properties could not be decoded
 		if (instance == null)
@@ -132,20 +169,74 @@ class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends Standard
 			instance = null;
 		}
 		
-		// set the cached version number
-		Long version = readEntityVersion(entity, type);
-		if (version != null)
+		return instance;
+	}
+
+	/**
+	 * Decodes only the projected properties of an entity. Instances of the stored
+	 * type are left unactivated so they cannot be updated until activated and
+	 * instances of any other type are not associated with the key.
+	 * 
+	 * @param into The type to decode or null to use the stored type
+	 */
+	final Object projectionToInstance(Entity entity, Class<?> into, final Collection<String> projected)
+	{
+		Class<?> type = into;
+		if (into == null)
 		{
-			assert version > 0;
-			datastore.keyCache.setVersion(instance, version);
+			// never replace the values of an existing instance with partial data
+			Object instance = datastore.keyCache.getInstance(entity.getKey());
+			if (instance != null)
+			{
+				return instance;
+			}
+			type = datastore.getConfiguration().kindToType(entity.getKind());
 		}
-		else if (depth >= 0 && !datastore.isActivated(instance))
+		
+		for (Map.Entry<String, Object> property : entity.getProperties().entrySet())
 		{
-			// set the version to 1 for activated non-versioned instances
-			datastore.keyCache.setVersion(instance, 1);
+			// projections with no declared type have raw values
+			if (property.getValue() instanceof RawValue)
+			{
+				entity.setProperty(property.getKey(), ((RawValue) property.getValue()).getValue());
+			}
+		}
+		
+		Restriction<Property> restriction = new Restriction<Property>()
+		{
+			@Override
+			public boolean allow(Property candidate)
+			{
+				return projected.contains(candidate.getPath().toString());
+			}
+		};
+		
+		Key existingDetachedKey = datastore.detachedKey;
+		if (into != null)
+		{
+			datastore.detachedKey = entity.getKey();
 		}
+		try
+		{
+			return decodeEntity(entity, type, restriction);
+		}
+		finally
+		{
+			datastore.detachedKey = existingDetachedKey;
+		}
+	}
 
-		return instance;
+	final <T> Iterator<T> projectionsToInstances(Iterator<Entity> entities, final Class<?> into, final Collection<String> projected)
+	{
+		return Iterators.transform(entities, new Function<Entity, T>()
+		{
+			@Override
+			public T apply(Entity entity)
+			{
+				datastore.command = StandardDecodeCommand.this;
+				return (T) projectionToInstance(entity, into, projected);
+			}
+		});
 	}
 
 	public final <T> Iterator<T> entitiesToInstances(final Iterator<Entity> entities, final Restriction<Property> filter)
@@ -195,9 +286,18 @@ class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends Standard
 	}
 	
 	public final <T> Map<Key, T> keysToInstances(Collection<Key> keys, Restriction<Property> filter)
+	{
+		return BaseObjectDatastore.getUnchecked(this.<T>keysToInstancesLater(keys, filter));
+	}
+
+	/**
+	 * Starts an async get for any instances not already in the key cache. The
+	 * entities are only decoded when the result is requested from the future. 
+	 */
+	final <T> Future<Map<Key, T>> keysToInstancesLater(Collection<Key> keys, final Restriction<Property> filter)
 	{
 		// only load the instances we do not already have in the cache
-		Map<Key, T> result = new HashMap<Key, T>(keys.size());
+		final Map<Key, T> result = new HashMap<Key, T>(keys.size());
 		List<Key> missing = null;
 		for (Key key : keys)
 		{
@@ -218,30 +318,44 @@ class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends Standard
 			}
 		}
 		
-		if (missing != null && !missing.isEmpty())
+		if (missing == null || missing.isEmpty())
 		{
-			Map<Key, Entity> entities = keysToEntities(missing);
-			
-			// must decode in same order as keys - needed for refreshing
-			for (Key key : missing)
+			return Futures.immediateFuture(result);
+		}
+		
+		final List<Key> ordered = missing;
+		return new LazyFutureWrapper<Map<Key, Entity>, Map<Key, T>>(keysToEntitiesLater(missing))
+		{
+			@Override
+			protected Map<Key, T> wrap(Map<Key, Entity> entities)
 			{
-				Entity entity = entities.get(key);
-
-				if (entity == null) continue;
+				checkThread();
 				
-//				// other instances that reference it will still work
-//				if (datastore.refresh != null)
-//				{
-//					datastore.keyCache.evictKey(key);
-//				}
+				// decode with this command even if others were created since
+				StandardCommand existing = datastore.command;
+				datastore.command = StandardDecodeCommand.this;
+				try
+				{
+					// must decode in same order as keys - needed for refreshing
+					for (Key key : ordered)
+					{
+						Entity entity = entities.get(key);
+						
+						if (entity == null) continue;
+						
+						T instance = (T) entityToInstance(entity, filter);
+						
+						result.put(key, instance);
+					}
+				}
+				finally
+				{
+					datastore.command = existing;
+				}
 				
-				T instance = (T) entityToInstance(entity, filter);
-
-				result.put(key, instance);
+				return result;
 			}
-		}
-
-		return result;
+		};
 	}
 
 	final Entity keyToEntity(Key key)
@@ -265,11 +379,16 @@ class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends Standard
 	}
 	
 	final Map<Key, Entity> keysToEntities(Collection<Key> keys)
+	{
+		return BaseObjectDatastore.getUnchecked(keysToEntitiesLater(keys));
+	}
+	
+	final Future<Map<Key, Entity>> keysToEntitiesLater(Collection<Key> keys)
 	{
 		// only load entity if we will activate instance
 		if (depth >= 0)
 		{
-			return datastore.serviceGet(keys, getSettings());
+			return datastore.serviceGetLater(keys, getSettings());
 		}
 		else
 		{
@@ -279,7 +398,7 @@ class StandardDecodeCommand<C extends StandardDecodeCommand<C>> extends Standard
 			{
 				result.put(key, new Entity(key));
 			}
-			return result;
+			return Futures.immediateFuture((Map<Key, Entity>) result);
 		}
 	}
 
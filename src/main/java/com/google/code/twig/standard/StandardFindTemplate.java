@@ -0,0 +1,53 @@
+package com.google.code.twig.standard;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.code.twig.FindCommand.FetchMode;
+import com.google.code.twig.FindCommand.RootFindCommand;
+import com.google.code.twig.FindTemplate;
+import com.google.code.twig.ObjectDatastore;
+import com.google.code.twig.Property;
+import com.google.code.twig.Restriction;
+import com.google.code.twig.Settings;
+import com.google.code.twig.standard.StandardCommonFindCommand.Filter;
+import com.google.code.twig.standard.StandardRootFindCommand.Sort;
+
+/**
+ * The state of a root find command without any reference to the datastore
+ * that created it. Every field is set once by {@link StandardRootFindCommand}
+ * and never changed.
+ */
+class StandardFindTemplate<T> implements FindTemplate<T>
+{
+	Class<?> type;
+	int depth;
+	List<Filter> filters;
+	List<Sort> sorts;
+	Key ancestor;
+	FetchOptions options;
+	List<PropertyProjection> projections;
+	Class<?> projectInto;
+	FetchMode fetchMode;
+	boolean remember;
+	Settings settings;
+	Restriction<Entity> entityRestriction;
+	Restriction<Property> propertyRestriction;
+
+	@Override
+	public RootFindCommand<T> bind(ObjectDatastore datastore, Map<String, ?> values)
+	{
+		return new StandardRootFindCommand<T>(this, (TranslatorObjectDatastore) datastore, values);
+	}
+
+	@Override
+	public RootFindCommand<T> bind(ObjectDatastore datastore, String name, Object value)
+	{
+		return bind(datastore, Collections.singletonMap(name, value));
+	}
+}
@@ -3,10 +3,13 @@ package com.google.code.twig.standard;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.code.twig.util.LazyFutureWrapper;
 
 public class StandardMultipleParentsCommand<P> extends StandardCommonParentsCommand<P>
 {
@@ -25,43 +28,91 @@ public class StandardMultipleParentsCommand<P> extends StandardCommonParentsComm
 		// keys only child queries cannot be sorted as fields are missing
 		if (childCommand.getRootCommand().isUnactivated())
 		{
-			// fetch in bulk ancestors entities for all child iterators
 			EntitySupplier supplier = new EntitySupplier(datastore, getFetchSize(), getSettings());
-			
-			// cannot merge children so must get ancestors entities first
-			List<Iterator<Entity>> parentEntityIterators = new ArrayList<Iterator<Entity>>(childEntityIterators.size());
-			for (Iterator<Entity> childEntities : childEntityIterators)
-			{
-				// convert children to parents - may be dups so use a cache
-				childEntities = childCommand.applyEntityFilter(childEntities);
-				Iterator<Entity> parentEntities = new SuppliedPrefetchParentIterator(childEntities, supplier);
-				parentEntities = applyEntityFilter(parentEntities);
-				parentEntityIterators.add(parentEntities);
-			}
-			
-			// merge all the ancestors iterators into a single iterator
-			Iterator<Entity> mergedParentEntities = mergeEntities(parentEntityIterators, sorts);
-			
-			// convert the entities into instances to return
-			return entitiesToInstances(mergedParentEntities, propertyRestriction);
+			return mergedParentsToInstances(parentEntityIterators(supplier));
 		}
 		else
 		{
-			// we can merge the children first which gets rid of duplicates
-			Iterator<Entity> mergedChildEntities = mergeEntities(childEntityIterators, sorts);
-			mergedChildEntities = applyEntityFilter(mergedChildEntities);
-			
-			// get parents for all children at the same time - no dups so no cache
-			mergedChildEntities = childCommand.applyEntityFilter(mergedChildEntities);
-			Iterator<Entity> parentEntities = new PrefetchParentIterator(mergedChildEntities, datastore, getFetchSize());
-			parentEntities = applyEntityFilter(parentEntities);
-			return entitiesToInstances(parentEntities, propertyRestriction);
+			return parentsToInstances(mergedParentEntities());
 		}
 	}
 	
 	@Override
 	public Future<Iterator<P>> later()
 	{
-		throw new UnsupportedOperationException("Not implemented yet. Depends on async bulk get.");
+		// start getting the first parents now so they arrive while the caller does other work
+		Future<Map<Key, Entity>> prefetched;
+		final List<Iterator<Entity>> parentEntityIterators;
+		final PrefetchParentIterator parentEntities;
+		if (childCommand.getRootCommand().isUnactivated())
+		{
+			EntitySupplier supplier = new EntitySupplier(datastore, getFetchSize(), getSettings());
+			parentEntityIterators = parentEntityIterators(supplier);
+			parentEntities = null;
+			prefetched = supplier.demand();
+		}
+		else
+		{
+			parentEntityIterators = null;
+			parentEntities = mergedParentEntities();
+			prefetched = parentEntities.prefetch();
+		}
+		
+		return new LazyFutureWrapper<Map<Key, Entity>, Iterator<P>>(prefetched)
+		{
+			@Override
+			protected Iterator<P> wrap(Map<Key, Entity> ignored)
+			{
+				if (parentEntityIterators != null)
+				{
+					return mergedParentsToInstances(parentEntityIterators);
+				}
+				else
+				{
+					return parentsToInstances(parentEntities);
+				}
+			}
+		};
+	}
+
+	private List<Iterator<Entity>> parentEntityIterators(EntitySupplier supplier)
+	{
+		// cannot merge children so must get ancestors entities first
+		List<Iterator<Entity>> parentEntityIterators = new ArrayList<Iterator<Entity>>(childEntityIterators.size());
+		for (Iterator<Entity> childEntities : childEntityIterators)
+		{
+			// convert children to parents - may be dups so use a cache
+			childEntities = childCommand.applyEntityFilter(childEntities);
+			Iterator<Entity> parentEntities = new SuppliedPrefetchParentIterator(childEntities, supplier);
+			parentEntities = applyEntityFilter(parentEntities);
+			parentEntityIterators.add(parentEntities);
+		}
+		return parentEntityIterators;
+	}
+
+	private Iterator<P> mergedParentsToInstances(List<Iterator<Entity>> parentEntityIterators)
+	{
+		// merge all the ancestors iterators into a single iterator
+		Iterator<Entity> mergedParentEntities = mergeEntities(parentEntityIterators, sorts);
+		
+		// convert the entities into instances to return
+		return entitiesToInstances(mergedParentEntities, propertyRestriction);
+	}
+
+	private PrefetchParentIterator mergedParentEntities()
+	{
+		// we can merge the children first which gets rid of duplicates
+		Iterator<Entity> mergedChildEntities = mergeEntities(childEntityIterators, sorts);
+		mergedChildEntities = applyEntityFilter(mergedChildEntities);
+		
+		// get parents for all children at the same time - no dups so no cache
+		mergedChildEntities = childCommand.applyEntityFilter(mergedChildEntities);
+		return new PrefetchParentIterator(mergedChildEntities, datastore, getFetchSize());
+	}
+
+	private Iterator<P> parentsToInstances(Iterator<Entity> parentEntities)
+	{
+		parentEntities = applyEntityFilter(parentEntities);
+		return entitiesToInstances(parentEntities, propertyRestriction);
 	}
 }
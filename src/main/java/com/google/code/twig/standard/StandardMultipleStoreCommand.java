@@ -33,6 +33,22 @@ public class StandardMultipleStoreCommand<T> extends StandardCommonStoreCommand<
 	{
 		if (instances.isEmpty()) return Collections.emptyMap();
 		
+		boolean started = startGraph();
+		boolean encoded = false;
+		try
+		{
+			Map<T, Key> keys = storeNow();
+			encoded = true;
+			return keys;
+		}
+		finally
+		{
+			finishGraph(started, encoded);
+		}
+	}
+
+	private Map<T, Key> storeNow()
+	{		
 		// convert into entities ready to store
 		Map<Object, Entity> instanceToEntity = (Map<Object, Entity>) instancesToEntities();
 
@@ -49,16 +65,18 @@ public class StandardMultipleStoreCommand<T> extends StandardCommonStoreCommand<
 		{
 			txn = version(filteredInstanceToEntity);
 			
-			// TODO allow command to override settings
-			List<Key> keys = datastore.servicePut(filteredInstanceToEntity.values(), datastore.getDefaultSettings());
+			if (updated != null)
+			{
+				txn = backup(Maps.filterKeys(filteredInstanceToEntity, Predicates.in(updated)), txn);
+			}
+			
+			List<Key> keys = put(filteredInstanceToEntity.values(), txn);
 			
 			if (txn != null)
 			{
 				txn.commit();
 			}
 			
-			// TODO multiple backup 
-			
 			return createKeyMapAndUpdateKeyCache(filteredInstanceToEntity, keys);
 		}
 		catch (RuntimeException e)
@@ -1,9 +1,16 @@
 package com.google.code.twig.standard;
 
+import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Cursor;
@@ -12,28 +19,49 @@ import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Index;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.Query.SortPredicate;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.code.twig.ChunkVisitor;
 import com.google.code.twig.CommandTerminator;
+import com.google.code.twig.FindCommand.FetchMode;
+import com.google.code.twig.FindCommand.MergeOperator;
 import com.google.code.twig.FindCommand.ParentsCommand;
 import com.google.code.twig.FindCommand.RootFindCommand;
+import com.google.code.twig.FindTemplate;
 import com.google.code.twig.LoadCommand.CacheMode;
+import com.google.code.twig.Mutation;
+import com.google.code.twig.Settings;
+import com.google.code.twig.annotation.Backup;
+import com.google.code.twig.annotation.Version;
 import com.google.code.twig.util.FutureAdaptor;
 import com.google.code.twig.util.ImmediateFuture;
+import com.google.code.twig.util.LazyFutureWrapper;
+import com.google.code.twig.util.Pair;
 import com.google.common.collect.ForwardingIterator;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.Futures;
 
 public class StandardRootFindCommand<T> extends StandardCommonFindCommand<StandardRootFindCommand<T>>
 		implements RootFindCommand<T>
 {
+	private static final int COUNT_CHUNK_SIZE = 1000;
+	private static final int MAXIMUM_PENDING_UPDATES = 5;
+	
 	private final Class<?> type;
 	private FetchOptions options;
+	private MergedCursor mergedCursor;
 	private Object ancestor;
+	private List<PropertyProjection> projections;
+	private Class<?> projectInto;
+	private FetchMode fetchMode = FetchMode.QUERY;
 	List<Sort> sorts;
 
-	class Sort
+	static class Sort
 	{
 		public Sort(String field, SortDirection direction)
 		{
@@ -52,6 +80,35 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 		this.type = type;
 	}
 
+	StandardRootFindCommand(StandardFindTemplate<T> template, TranslatorObjectDatastore datastore, Map<String, ?> values)
+	{
+		super(datastore, template.depth);
+		this.type = template.type;
+		if (template.sorts != null)
+		{
+			this.sorts = new ArrayList<Sort>(template.sorts);
+		}
+		this.ancestor = template.ancestor;
+		this.projections = template.projections;
+		this.projectInto = template.projectInto;
+		this.fetchMode = template.fetchMode;
+		this.remember = template.remember;
+		this.entityRestriction = template.entityRestriction;
+		this.propertyRestriction = template.propertyRestriction;
+		if (template.options != null)
+		{
+			this.options = copyFetchOptions(template.options);
+		}
+		if (template.settings != null)
+		{
+			this.settings = Settings.copy(template.settings);
+		}
+		if (template.filters != null)
+		{
+			bindFilters(template.filters, values);
+		}
+	}
+
 	@Override
 	StandardRootFindCommand<T> getRootCommand()
 	{
@@ -94,6 +151,102 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 		return this;
 	}
 
+	@Override
+	public FindTemplate<T> prepare()
+	{
+		if (children != null)
+		{
+			throw new IllegalStateException("Cannot prepare a merged find");
+		}
+		if (mergedCursor != null)
+		{
+			throw new IllegalStateException("Cannot prepare a find continued from a merged cursor");
+		}
+		
+		StandardFindTemplate<T> template = new StandardFindTemplate<T>();
+		template.type = type;
+		template.depth = depth;
+		template.filters = filters == null ? null : Collections.unmodifiableList(new ArrayList<Filter>(filters));
+		template.sorts = sorts == null ? null : Collections.unmodifiableList(new ArrayList<Sort>(sorts));
+		template.options = options == null ? null : copyFetchOptions(options);
+		template.projections = projections;
+		template.projectInto = projectInto;
+		template.fetchMode = fetchMode;
+		template.remember = remember;
+		template.settings = settings == null ? null : settings.build();
+		template.entityRestriction = entityRestriction;
+		template.propertyRestriction = propertyRestriction;
+		
+		// the template must not refer to instances of this datastore
+		if (ancestor != null)
+		{
+			template.ancestor = ancestorKey();
+		}
+		return template;
+	}
+
+	@Override
+	public StandardRootFindCommand<T> fetchMode(FetchMode mode)
+	{
+		this.fetchMode = mode;
+		return this;
+	}
+
+	@Override
+	public StandardRootFindCommand<T> project(String... fields)
+	{
+		projections = new ArrayList<PropertyProjection>(fields.length);
+		for (String field : fields)
+		{
+			Pair<Field, String> fieldAndProperty = datastore.getFieldAndPropertyForPath(field, type);
+			if (fieldAndProperty == null)
+			{
+				throw new IllegalArgumentException("Could not find field " + field + " in " + type);
+			}
+			
+			// let the datastore convert to the type that was stored for this field
+			Class<?> stored = projectionType(fieldAndProperty.getFirst().getType());
+			projections.add(new PropertyProjection(fieldAndProperty.getSecond(), stored));
+		}
+		return this;
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <P> StandardRootFindCommand<P> project(Class<P> into, String... fields)
+	{
+		project(fields);
+		projectInto = into;
+		return (StandardRootFindCommand<P>) this;
+	}
+
+	private static Class<?> projectionType(Class<?> type)
+	{
+		type = Primitives.wrap(type);
+		if (type == Integer.class || type == Short.class || type == Byte.class)
+		{
+			return Long.class;
+		}
+		else if (type == Float.class)
+		{
+			return Double.class;
+		}
+		else if (type.isEnum())
+		{
+			return String.class;
+		}
+		else if (type == String.class || type == Long.class || type == Double.class ||
+				type == Boolean.class || type == Date.class || type == Key.class)
+		{
+			return type;
+		}
+		else
+		{
+			// raw values are converted to their natural type when decoded
+			return null;
+		}
+	}
+
 	@Override
 	public StandardRootFindCommand<T> continueFrom(Cursor cursor)
 	{
@@ -105,6 +258,20 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 		return this;
 	}
 
+	@Override
+	public StandardRootFindCommand<T> continueFrom(String cursor)
+	{
+		if (MergedCursor.isMerged(cursor))
+		{
+			mergedCursor = MergedCursor.fromWebSafeString(cursor);
+			return this;
+		}
+		else
+		{
+			return continueFrom(Cursor.fromWebSafeString(cursor));
+		}
+	}
+
 	@Override
 	public StandardRootFindCommand<T> finishAt(Cursor cursor)
 	{
@@ -175,7 +342,19 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 	@Override
 	public Future<QueryResultIterator<T>> later()
 	{
-		return new ImmediateFuture<QueryResultIterator<T>>(now());
+		// preparing the query starts the datastore call in the background
+		QueryResultIterator<T> results = now();
+		
+		return new LazyFutureWrapper<QueryResultIterator<T>, QueryResultIterator<T>>(Futures.immediateFuture(results))
+		{
+			@Override
+			protected QueryResultIterator<T> wrap(QueryResultIterator<T> results)
+			{
+				// wait for the first results which are decoded as they are iterated
+				results.hasNext();
+				return results;
+			}
+		};
 	}
 
 	@Override
@@ -186,14 +365,18 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 			@Override
 			public Integer now()
 			{
+				if (isIntersection())
+				{
+					return Iterators.size(nowIntersectedKeys());
+				}
+				
 				Collection<Query> queries = getValidatedQueries();
 				if (queries.size() > 1)
 				{
-					throw new IllegalStateException("Too many queries");
+					return Iterators.size(nowUnitedKeys(queries));
 				}
-
-				Query query = queries.iterator().next();
-				PreparedQuery prepared = datastore.servicePrepare(query, getSettings());
+				
+				PreparedQuery prepared = datastore.servicePrepare(queries.iterator().next(), getSettings());
 				if (options == null)
 				{
 					options = FetchOptions.Builder.withDefaults();
@@ -204,7 +387,47 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 			@Override
 			public Future<Integer> later()
 			{
-				throw new UnsupportedOperationException("Not implemented yet. Depends on async count");
+				if (isIntersection())
+				{
+					return countLater(nowIntersectedKeys());
+				}
+				
+				Collection<Query> queries = getValidatedQueries();
+				if (queries.size() > 1)
+				{
+					return countLater(nowUnitedKeys(queries));
+				}
+				
+				// count is a blocking call so count the keys of a keys-only query instead
+				Query query = queries.iterator().next();
+				query.setKeysOnly();
+				
+				FetchOptions countOptions = FetchOptions.Builder
+						.withChunkSize(COUNT_CHUNK_SIZE)
+						.prefetchSize(COUNT_CHUNK_SIZE);
+				if (options != null)
+				{
+					if (options.getLimit() != null) countOptions.limit(options.getLimit());
+					if (options.getOffset() != null) countOptions.offset(options.getOffset());
+					if (options.getStartCursor() != null) countOptions.startCursor(options.getStartCursor());
+					if (options.getEndCursor() != null) countOptions.endCursor(options.getEndCursor());
+				}
+				
+				// creating the iterator starts fetching the first batch of keys
+				PreparedQuery prepared = datastore.servicePrepare(query, getSettings());
+				return countLater(prepared.asQueryResultIterator(countOptions));
+			}
+			
+			private Future<Integer> countLater(Iterator<?> keys)
+			{
+				return new LazyFutureWrapper<Iterator<?>, Integer>(Futures.<Iterator<?>>immediateFuture(keys))
+				{
+					@Override
+					protected Integer wrap(Iterator<?> keys)
+					{
+						return Iterators.size(keys);
+					}
+				};
 			}
 		};
 		
@@ -243,11 +466,12 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 			@Override
 			public Future<T> later()
 			{
+				// the query is started now but results are only read when the future is got
 				Future<QueryResultIterator<T>> future = StandardRootFindCommand.this.later();
-				return new FutureAdaptor<QueryResultIterator<T>, T>(future)
+				return new LazyFutureWrapper<QueryResultIterator<T>, T>(future)
 				{
 					@Override
-					protected T adapt(QueryResultIterator<T> source)
+					protected T wrap(QueryResultIterator<T> source)
 					{
 						return uniqueOrNull(source);
 					}
@@ -300,6 +524,163 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 		};
 	}
 	
+	@Override
+	public void forEach(int size, ChunkVisitor<T> visitor)
+	{
+		// fetch only one chunk at a time
+		fetchFirst(size);
+		fetchNextBy(size);
+		remember = false;
+		
+		QueryResultIterator<T> results = execute();
+		Iterator<List<T>> chunks = Iterators.partition(results, size);
+		while (chunks.hasNext())
+		{
+			// remember the instances and related instances this chunk associates
+			List<T> chunk;
+			List<Object> associated;
+			datastore.keyCache.startRecording();
+			try
+			{
+				chunk = chunks.next();
+			}
+			finally
+			{
+				associated = datastore.keyCache.stopRecording();
+			}
+			
+			boolean more = visitor.visit(chunk, webSafeCursor(results));
+			
+			// release them before decoding the next chunk but keep instances held before
+			for (Object instance : associated)
+			{
+				datastore.disassociate(instance);
+			}
+			
+			if (!more)
+			{
+				break;
+			}
+		}
+	}
+
+	@Override
+	public int mutate(int size, final Mutation<? super T> mutation)
+	{
+		final LinkedList<PendingUpdate> pending = new LinkedList<PendingUpdate>();
+		final int[] updated = new int[1];
+		
+		forEach(size, new ChunkVisitor<T>()
+		{
+			@Override
+			public boolean visit(List<T> chunk, String cursor)
+			{
+				List<T> changed = new ArrayList<T>(chunk.size());
+				for (T instance : chunk)
+				{
+					if (mutation.mutate(instance))
+					{
+						changed.add(instance);
+					}
+				}
+				updated[0] += changed.size();
+				
+				boolean pipelined = isPipelinedUpdate(changed);
+				PendingUpdate update = new PendingUpdate(cursor);
+				if (!changed.isEmpty())
+				{
+					if (pipelined)
+					{
+						// encoded now but the put is only waited for when too many are sent
+						update.put = datastore.store().update(Boolean.TRUE).instances(changed).later();
+					}
+					else
+					{
+						datastore.updateAll(changed);
+					}
+				}
+				pending.add(update);
+				
+				while (pending.size() > MAXIMUM_PENDING_UPDATES || !pipelined && !pending.isEmpty())
+				{
+					complete(pending.removeFirst(), mutation);
+				}
+				return true;
+			}
+		});
+		
+		while (!pending.isEmpty())
+		{
+			complete(pending.removeFirst(), mutation);
+		}
+		return updated[0];
+	}
+	
+	private static class PendingUpdate
+	{
+		final String cursor;
+		Future<?> put;
+		
+		PendingUpdate(String cursor)
+		{
+			this.cursor = cursor;
+		}
+	}
+	
+	private static void complete(PendingUpdate update, Mutation<?> mutation)
+	{
+		if (update.put != null)
+		{
+			BaseObjectDatastore.getUnchecked(update.put);
+		}
+		mutation.checkpoint(update.cursor);
+	}
+	
+	// async puts do not check versions, back up, skip unchanged instances, update the cache or join a batch
+	private boolean isPipelinedUpdate(List<T> instances)
+	{
+		if (datastore.getTransaction() != null
+				|| datastore.isBatching()
+				|| datastore.getDefaultSettings().isDirtyChecking())
+		{
+			return false;
+		}
+		
+		// a find on a base type can return subclasses
+		Set<Class<?>> checked = new HashSet<Class<?>>();
+		for (T instance : instances)
+		{
+			Class<?> instanceType = instance.getClass();
+			if (checked.add(instanceType))
+			{
+				if (instanceType.isAnnotationPresent(Version.class)
+						|| instanceType.isAnnotationPresent(Backup.class)
+						|| BaseObjectDatastore.isKindCached(datastore.getConfiguration().typeToKind(instanceType)))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String webSafeCursor(QueryResultIterator<?> results)
+	{
+		if (results instanceof MergedQueryResultIterator<?>)
+		{
+			return ((MergedQueryResultIterator<?>) results).getWebSafeCursor();
+		}
+		else if (results instanceof NoCursorQueryResultIterator<?>)
+		{
+			return null;
+		}
+		else
+		{
+			Cursor cursor = results.getCursor();
+			return cursor == null ? null : cursor.toWebSafeString();
+		}
+	}
+	
 	@Override
 	public <P> CommandTerminator<Iterator<P>> returnParents()
 	{
@@ -340,7 +721,12 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 	public <P> ParentsCommand<P> parentsCommandNow()
 	{
 		Collection<Query> queries = queries();
-		if (queries.size() == 1)
+		if (isIntersection())
+		{
+			Iterator<Entity> childEntities = nowIntersectedQueryEntities(queries);
+			return new StandardSingleParentsCommand<P>(this, childEntities, datastore.defaultActivationDepth);
+		}
+		else if (queries.size() == 1)
 		{
 			QueryResultIterator<Entity> childEntities = nowSingleQueryEntities(queries.iterator().next());
 			return new StandardSingleParentsCommand<P>(this, childEntities, datastore.defaultActivationDepth);
@@ -378,31 +764,67 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 	
 	protected QueryResultIterator<T> execute()
 	{
-		if (children == null)
+		Collection<Query> queries = getValidatedQueries();
+		if (isIntersection())
 		{
-			Collection<Query> queries = getValidatedQueries();
-			if (queries.size() > 1)
+			Iterator<Entity> entities = nowIntersectedQueryEntities(queries);
+			Iterator<T> result = toInstances(entities);
+			return new NoCursorQueryResultIterator<T>(result);
+		}
+		else if (queries.size() == 1)
+		{
+			if (mergedCursor != null)
 			{
-				throw new IllegalStateException("Too many queries");
+				throw new IllegalArgumentException("Cannot continue a single query from a merged cursor");
 			}
+			
 			Query query = queries.iterator().next();
 
-			QueryResultIterator<Entity> entities = nowSingleQueryEntities(query);
+			QueryResultIterator<Entity> entities;
+			if (isFetchingThroughCache(query))
+			{
+				entities = nowSingleQueryCachedEntities(query);
+			}
+			else
+			{
+				entities = nowSingleQueryEntities(query);
+			}
 
 			Iterator<Entity> iterator = applyEntityFilter(entities);
 
-			Iterator<T> instances = entitiesToInstances(iterator, propertyRestriction);
+			Iterator<T> instances = toInstances(iterator);
 			return new BasicQueryResultIterator<T>(instances, entities);
 		}
 		else
 		{
-			try
+			if (mergedCursor != null && mergedCursor.size() != queries.size())
 			{
-				Collection<Query> queries = getValidatedQueries();
-				Iterator<Entity> entities = nowMultipleQueryEntities(queries);
-				Iterator<T> result = entitiesToInstances(entities, propertyRestriction);
+				throw new IllegalArgumentException("Cursor is not from this find");
+			}
+			
+			// without sorts there is no need to merge so dedupe the keys of all queries
+			if (mergedCursor == null && queries.iterator().next().getSortPredicates().isEmpty())
+			{
+				Iterator<Entity> entities = nowUnitedQueryEntities(queries);
+				Iterator<T> result = toInstances(entities);
 				return new NoCursorQueryResultIterator<T>(result);
 			}
+			
+			try
+			{
+				if (isRemembering())
+				{
+					// remembered results have no cursors
+					Iterator<Entity> entities = nowMultipleQueryEntities(queries);
+					Iterator<T> result = toInstances(entities);
+					return new NoCursorQueryResultIterator<T>(result);
+				}
+				
+				MergedCursor cursor = mergedCursor == null ? new MergedCursor(queries.size()) : new MergedCursor(mergedCursor);
+				Iterator<Entity> entities = nowMultipleQueryEntities(queries, cursor);
+				Iterator<T> result = toInstances(entities);
+				return new MergedQueryResultIterator<T>(result, cursor);
+			}
 			catch (Exception e)
 			{
 				// only unchecked exceptions thrown from datastore service
@@ -411,11 +833,69 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 		}
 	}
 
+	private Iterator<T> toInstances(Iterator<Entity> entities)
+	{
+		if (projections == null)
+		{
+			return entitiesToInstances(entities, propertyRestriction);
+		}
+		
+		List<String> projected = new ArrayList<String>(projections.size());
+		for (PropertyProjection projection : projections)
+		{
+			projected.add(projection.getName());
+		}
+		return projectionsToInstances(entities, projectInto, projected);
+	}
+
+	private boolean isFetchingThroughCache(Query query)
+	{
+		// these already avoid reading whole entities or have their own cache
+		if (projections != null || isUnactivated() || isRemembering())
+		{
+			return false;
+		}
+		
+		if (fetchMode == FetchMode.AUTO)
+		{
+			return datastore.isMostlyCached(query.getKind(), getSettings().getCacheMode());
+		}
+		return fetchMode == FetchMode.CACHE;
+	}
+
+	private boolean isIntersection()
+	{
+		return operator == MergeOperator.AND && children != null;
+	}
+
+	@Override
+	protected Collection<Query> queries()
+	{
+		// let the datastore merge branches with a single OR query when it can
+		if (children != null && isComposable())
+		{
+			Query.Filter filter = compositeFilter();
+			if (combinations(filter) <= MAXIMUM_COMBINATIONS)
+			{
+				Query query = newUnfilteredQuery();
+				query.setFilter(filter);
+				return Collections.singleton(query);
+			}
+		}
+		return super.queries();
+	}
+
 	@Override
 	protected Query newQuery()
 	{
-		Query query = new Query(datastore.getConfiguration().typeToKind(type));
+		Query query = newUnfilteredQuery();
 		applyFilters(query);
+		return query;
+	}
+
+	private Query newUnfilteredQuery()
+	{
+		Query query = new Query(datastore.getConfiguration().typeToKind(type));
 		if (sorts != null)
 		{
 			for (Sort sort : sorts)
@@ -425,23 +905,42 @@ public class StandardRootFindCommand<T> extends StandardCommonFindCommand<Standa
 		}
 		if (ancestor != null)
 		{
-			Key key = datastore.associatedKey(ancestor);
-			if (key == null)
+			query.setAncestor(ancestorKey());
+		}
+		
+		// only get the projected values from the index
+		if (projections != null)
+		{
+			for (PropertyProjection projection : projections)
 			{
-				throw new IllegalArgumentException("Ancestor was not associated");
+				query.addProjection(projection);
 			}
-			query.setAncestor(key);
 		}
-		
-		// do not even get data for this instance if unactivated
-		if (isUnactivated())
+		else if (isUnactivated())
 		{
+			// do not even get data for this instance if unactivated
 			query.setKeysOnly();
 		}
 		
 		return query;
 	}
 
+	private Key ancestorKey()
+	{
+		// templates keep the key of the ancestor
+		if (ancestor instanceof Key)
+		{
+			return (Key) ancestor;
+		}
+		
+		Key key = datastore.associatedKey(ancestor);
+		if (key == null)
+		{
+			throw new IllegalArgumentException("Ancestor was not associated");
+		}
+		return key;
+	}
+
 	public FetchOptions getFetchOptions()
 	{
 		return options;
@@ -1,9 +1,12 @@
 package com.google.code.twig.standard;
 
 import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.code.twig.util.LazyFutureWrapper;
 
 public class StandardSingleParentsCommand<P> extends StandardCommonParentsCommand<P>
 {
@@ -18,16 +21,36 @@ public class StandardSingleParentsCommand<P> extends StandardCommonParentsComman
 	@Override
 	public Iterator<P> now()
 	{
-		// no need to cache entities because there are no duplicates
-		Iterator<Entity> filtered = childCommand.applyEntityFilter(childEntities);
-		Iterator<Entity> parentEntities = new PrefetchParentIterator(filtered, datastore, getFetchSize());
-		parentEntities = applyEntityFilter(parentEntities);
-		return childCommand.entitiesToInstances(parentEntities, propertyRestriction);
+		return parentsToInstances(parentEntities());
 	}
 
 	@Override
 	public Future<Iterator<P>> later()
 	{
-		throw new UnsupportedOperationException("Not yet implemented. Depends on async bulk get.");
+		final PrefetchParentIterator parentEntities = parentEntities();
+		
+		// start getting the first parents now so they arrive while the caller does other work
+		Future<Map<Key, Entity>> prefetched = parentEntities.prefetch();
+		return new LazyFutureWrapper<Map<Key, Entity>, Iterator<P>>(prefetched)
+		{
+			@Override
+			protected Iterator<P> wrap(Map<Key, Entity> ignored)
+			{
+				return parentsToInstances(parentEntities);
+			}
+		};
+	}
+
+	private PrefetchParentIterator parentEntities()
+	{
+		// no need to cache entities because there are no duplicates
+		Iterator<Entity> filtered = childCommand.applyEntityFilter(childEntities);
+		return new PrefetchParentIterator(filtered, datastore, getFetchSize());
+	}
+
+	private Iterator<P> parentsToInstances(Iterator<Entity> parentEntities)
+	{
+		parentEntities = applyEntityFilter(parentEntities);
+		return childCommand.entitiesToInstances(parentEntities, propertyRestriction);
 	}
 }
@@ -31,6 +31,22 @@ public final class StandardSingleStoreCommand<T> extends StandardCommonStoreComm
 	}
 
 	public Key now()
+	{
+		boolean started = startGraph();
+		boolean encoded = false;
+		try
+		{
+			Key key = storeNow();
+			encoded = true;
+			return key;
+		}
+		finally
+		{
+			finishGraph(started, encoded);
+		}
+	}
+
+	private Key storeNow()
 	{
 		T instance = Iterables.getOnlyElement(instances);
 
@@ -50,6 +66,7 @@ public final class StandardSingleStoreCommand<T> extends StandardCommonStoreComm
 			// store always uses version 1 for activated
 			datastore.keyCache.cache(key, instance, 1);
 		}
+		saveSnapshots();
 		
 		return key;
 	}
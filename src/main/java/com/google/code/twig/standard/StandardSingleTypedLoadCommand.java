@@ -1,10 +1,13 @@
 package com.google.code.twig.standard;
 
 import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.code.twig.LoadCommand.SingleTypedLoadCommand;
+import com.google.code.twig.util.LazyFutureWrapper;
 
 public class StandardSingleTypedLoadCommand<T> extends StandardCommonLoadCommand<StandardSingleTypedLoadCommand<T>> implements SingleTypedLoadCommand<T>
 {
@@ -19,19 +22,32 @@ public class StandardSingleTypedLoadCommand<T> extends StandardCommonLoadCommand
 	@Override
 	public Future<T> later()
 	{
-		throw new UnsupportedOperationException("Not yet implemented");
+		final Key key = key();
+		
+		Future<Map<Key, T>> keysToInstances = keysToInstancesLater(Collections.singleton(key), propertyRestriction);
+		return new LazyFutureWrapper<Map<Key, T>, T>(keysToInstances)
+		{
+			@Override
+			protected T wrap(Map<Key, T> keysToInstances)
+			{
+				return keysToInstances.get(key);
+			}
+		};
 	}
 
 	@Override
 	public T now()
+	{
+		@SuppressWarnings("unchecked")
+		T keyToInstance = (T) keyToInstance(key(), propertyRestriction);
+		return keyToInstance;
+	}
+
+	private Key key()
 	{
 		// the stored type of the id can be defined for the id field
 		Field keyField = datastore.idField(command.type);
 		String kind = datastore.getConfiguration().typeToKind(command.type);
-		Key key = idToKey(id, keyField, kind, datastore, parentKey);
-		
-		@SuppressWarnings("unchecked")
-		T keyToInstance = (T) keyToInstance(key, propertyRestriction);
-		return keyToInstance;
+		return idToKey(id, keyField, kind, datastore, parentKey);
 	}
 }
@@ -3,11 +3,15 @@ package com.google.code.twig.standard;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.code.twig.standard.EntitySupplier.EntitySink;
+import com.google.common.base.Function;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 
 class SuppliedPrefetchParentIterator extends AbstractIterator<Entity> implements EntitySink
 {
@@ -42,15 +46,18 @@ class SuppliedPrefetchParentIterator extends AbstractIterator<Entity> implements
 	}
 
 	@Override
-	public void pickup()
+	public void pickup(final Future<Map<Key, Entity>> keysToEntities)
 	{
-		List<Entity> parents = new ArrayList<Entity>(ordered.size());
-		for (Key parentKey : ordered)
+		// only wait for the entities when the first parent is needed
+		List<Key> parentKeys = new ArrayList<Key>(ordered);
+		iterator = Iterators.transform(parentKeys.iterator(), new Function<Key, Entity>()
 		{
-			Entity parent = supplier.get(parentKey);
-			parents.add(parent);
-		}
-		iterator = parents.iterator();
+			@Override
+			public Entity apply(Key parentKey)
+			{
+				return BaseObjectDatastore.getUnchecked(keysToEntities).get(parentKey);
+			}
+		});
 		ordered.clear();
 	}
 
@@ -10,9 +10,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -45,6 +47,7 @@ import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 import com.vercer.convert.TypeConverter;
 
 /**
@@ -55,6 +58,10 @@ public abstract class TranslatorObjectDatastore extends BaseObjectDatastore
 	// keeps track of which instances are associated with which keys
 	protected final KeyInstanceCache keyCache = new KeyInstanceCache();
 
+	// snapshots of instances written in a transaction or batch kept until stored
+	private Map<Object, HashCode> transactionSnapshots;
+	private Map<Object, HashCode> batchSnapshots;
+
 	// ensure only used be a single thread
 	protected Thread thread;
 
@@ -82,6 +89,9 @@ public abstract class TranslatorObjectDatastore extends BaseObjectDatastore
 	// the key of the currently decoding entity
 	protected Key decodeKey;
 
+	// the key of a projection being decoded into an instance that is not cached
+	Key detachedKey;
+
 	// current activation depth
 	final int defaultActivationDepth;
 	
@@ -107,8 +117,6 @@ public abstract class TranslatorObjectDatastore extends BaseObjectDatastore
 	// allow current command to be manipulated by field annotations
 	public StandardCommand command;
 
-	Map<String, Iterator<Key>> allocatedIdRanges;
-
 	private final Configuration configuration;
 
 	public TranslatorObjectDatastore(Settings settings, Configuration configuration, int activation, boolean index)
@@ -255,6 +263,7 @@ public abstract class TranslatorObjectDatastore extends BaseObjectDatastore
 			.instance(instance)
 			.cascaded(cascade ? new HashSet<Object>() : null)
 			.date(cascade ? new Date() : null)
+			.graph(cascade)
 			.now();
 	}
 
@@ -274,6 +283,7 @@ public abstract class TranslatorObjectDatastore extends BaseObjectDatastore
 			.instances(instances)
 			.cascaded(cascade ? new HashSet<Object>() : null)
 			.date(cascade ? new Date() : null)
+			.graph(cascade)
 			.now();
 	}
 
@@ -788,14 +798,33 @@ public abstract class TranslatorObjectDatastore extends BaseObjectDatastore
 	{
 		Query query = createQuery(type);
 		query.setKeysOnly();
-		FetchOptions options = FetchOptions.Builder.withChunkSize(100);
-		Iterator<Entity> entities = servicePrepare(query, null).asIterator(options);
+		
+		// the next keys are fetched while earlier batches are being deleted
+		FetchOptions options = FetchOptions.Builder
+				.withChunkSize(MAXIMUM_BATCH_SIZE)
+				.prefetchSize(MAXIMUM_BATCH_SIZE);
+		Iterator<Entity> entities = servicePrepare(query, getDefaultSettings()).asIterator(options);
 		Iterator<Key> keys = Iterators.transform(entities, entityToKeyFunction);
-		Iterator<List<Key>> partitioned = Iterators.partition(keys, 100);
-		while (partitioned.hasNext())
+		
+		// every deleted entity must leave the caches whatever mode they are read with
+		Settings settings = Settings.copy(getDefaultSettings()).cacheMode(CacheMode.ON).build();
+		serviceDeletePipelined(evictingKeys(keys), settings);
+	}
+
+	private Iterator<Key> evictingKeys(Iterator<Key> keys)
+	{
+		return Iterators.transform(keys, new Function<Key, Key>()
 		{
-			deleteKeys(partitioned.next());
-		}
+			@Override
+			public Key apply(Key key)
+			{
+				if (keyCache.containsKey(key))
+				{
+					keyCache.evictKey(key);
+				}
+				return key;
+			}
+		});
 	}
 
 	@Override
@@ -931,7 +960,7 @@ public abstract class TranslatorObjectDatastore extends BaseObjectDatastore
 				result = TranslatorObjectDatastore.this.createInstance(clazz);
 				
 				// only cache persistent instance - not embedded components
-				if (keyCache.getInstance(decodeKey) == null)
+				if ((detachedKey == null || !detachedKey.equals(decodeKey)) && keyCache.getInstance(decodeKey) == null)
 				{
 					// we have not activated the instance yet
 					keyCache.cache(decodeKey, result, 0);
@@ -1157,4 +1186,95 @@ public abstract class TranslatorObjectDatastore extends BaseObjectDatastore
 		return new Pair<Field, String>(field, property);
 	}
 
+
+	/**
+	 * Remembers the stored state of instances once their entities are stored 
+	 * so a rolled back or discarded write is not mistaken for an unchanged 
+	 * instance by the next update
+	 */
+	final void saveSnapshots(Map<Object, HashCode> snapshots)
+	{
+		Map<Object, HashCode> pending = null;
+		if (getTransaction() != null && getTransaction().isActive())
+		{
+			if (transactionSnapshots == null)
+			{
+				transactionSnapshots = new IdentityHashMap<Object, HashCode>();
+			}
+			pending = transactionSnapshots;
+		}
+		else if (isBatching())
+		{
+			if (batchSnapshots == null)
+			{
+				batchSnapshots = new IdentityHashMap<Object, HashCode>();
+			}
+			pending = batchSnapshots;
+		}
+		
+		for (Entry<Object, HashCode> instanceAndSnapshot : snapshots.entrySet())
+		{
+			if (pending == null)
+			{
+				keyCache.setSnapshot(instanceAndSnapshot.getKey(), instanceAndSnapshot.getValue());
+			}
+			else
+			{
+				// the old snapshot no longer matches what will be stored
+				keyCache.setSnapshot(instanceAndSnapshot.getKey(), null);
+				pending.put(instanceAndSnapshot.getKey(), instanceAndSnapshot.getValue());
+			}
+		}
+	}
+
+	private void applySnapshots(Map<Object, HashCode> snapshots)
+	{
+		for (Entry<Object, HashCode> instanceAndSnapshot : snapshots.entrySet())
+		{
+			// the instance may have been disassociated since it was written
+			if (isAssociated(instanceAndSnapshot.getKey()))
+			{
+				keyCache.setSnapshot(instanceAndSnapshot.getKey(), instanceAndSnapshot.getValue());
+			}
+		}
+	}
+
+	@Override
+	protected void transactionFinished(boolean committed)
+	{
+		if (transactionSnapshots != null)
+		{
+			if (committed)
+			{
+				applySnapshots(transactionSnapshots);
+			}
+			transactionSnapshots = null;
+		}
+	}
+
+	@Override
+	protected void batchFinished(boolean flushed)
+	{
+		if (batchSnapshots != null)
+		{
+			if (flushed)
+			{
+				applySnapshots(batchSnapshots);
+			}
+			batchSnapshots = null;
+		}
+	}
+
+	@Override
+	protected Object saveSessionState()
+	{
+		return keyCache.save();
+	}
+
+	@Override
+	protected void restoreSessionState(Object state)
+	{
+		// instances associated or versioned by the failed attempt are forgotten
+		keyCache.restore((KeyInstanceCache.State) state);
+	}
 }
@@ -0,0 +1,26 @@
+package com.google.code.twig.util;
+
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.utils.FutureWrapper;
+
+/**
+ * <p>A {@link FutureWrapper} which only converts the parent result when it is
+ * first requested so the conversion is done by the thread calling get().</p>
+ *
+ * <p>This is a plain {@link Future} rather than a listenable one because the
+ * conversion uses the datastore which must only be used by its own thread.</p>
+ */
+public abstract class LazyFutureWrapper<K, V> extends FutureWrapper<K, V>
+{
+	public LazyFutureWrapper(Future<K> parent)
+	{
+		super(parent);
+	}
+
+	@Override
+	protected Throwable convertException(Throwable cause)
+	{
+		return cause;
+	}
+}
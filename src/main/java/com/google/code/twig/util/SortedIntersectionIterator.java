@@ -0,0 +1,80 @@
+package com.google.code.twig.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * Returns only the elements found in every one of the sorted iterators by
+ * skipping each iterator forward to the largest element seen so far.
+ */
+public class SortedIntersectionIterator<T> extends AbstractIterator<T>
+{
+	private final Comparator<? super T> comparator;
+	private final List<PeekingIterator<T>> peekings;
+
+	public SortedIntersectionIterator(Comparator<? super T> comparator, Collection<? extends Iterator<T>> iterators)
+	{
+		this.comparator = comparator;
+		peekings = new ArrayList<PeekingIterator<T>>(iterators.size());
+		for (Iterator<T> iterator : iterators)
+		{
+			peekings.add(Iterators.peekingIterator(iterator));
+		}
+	}
+
+	@Override
+	protected T computeNext()
+	{
+		if (peekings.isEmpty())
+		{
+			return endOfData();
+		}
+
+		// go round the iterators until they all have the same top element
+		T candidate = null;
+		int agreed = 0;
+		int index = 0;
+		while (agreed < peekings.size())
+		{
+			PeekingIterator<T> peeking = peekings.get(index);
+			while (candidate != null && peeking.hasNext() && comparator.compare(peeking.peek(), candidate) < 0)
+			{
+				peeking.next();
+			}
+
+			if (!peeking.hasNext())
+			{
+				// no more elements can be in every iterator
+				return endOfData();
+			}
+
+			T top = peeking.peek();
+			if (candidate != null && comparator.compare(top, candidate) == 0)
+			{
+				agreed++;
+			}
+			else
+			{
+				// this element is larger so all others must catch up
+				candidate = top;
+				agreed = 1;
+			}
+
+			index = (index + 1) % peekings.size();
+		}
+
+		for (PeekingIterator<T> peeking : peekings)
+		{
+			peeking.next();
+		}
+
+		return candidate;
+	}
+}
@@ -12,13 +12,20 @@ import com.google.common.collect.PeekingIterator;
 public class SortedMergeIterator<T> extends AbstractIterator<T>
 {
 	private final Comparator<T> comparator;
+	private Collection<Iterator<T>> iterators;
 	private PriorityQueue<PeekingIterator<T>> peekings;
 	private T last;
 
 	public SortedMergeIterator(Comparator<T> comparator, Collection<Iterator<T>> iterators)
 	{
 		this.comparator = comparator;
-		peekings = new PriorityQueue<PeekingIterator<T>>(iterators.size(), pc);
+		this.iterators = iterators;
+	}
+
+	// wait for the first results only when the first element is requested
+	private void start()
+	{
+		peekings = new PriorityQueue<PeekingIterator<T>>(Math.max(1, iterators.size()), pc);
 		for (Iterator<T> iterator : iterators)
 		{
 			if (iterator.hasNext())
@@ -28,11 +35,17 @@ public class SortedMergeIterator<T> extends AbstractIterator<T>
 				peekings.offer(peeking);
 			}
 		}
+		iterators = null;
 	}
 
 	@Override
 	protected T computeNext()
 	{
+		if (peekings == null)
+		{
+			start();
+		}
+		
 		// keep getting elements until we have a non-duplicate
 		T next = null;
 		do
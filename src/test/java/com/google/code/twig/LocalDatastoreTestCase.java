@@ -5,11 +5,12 @@ import org.junit.Before;
 
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.code.twig.standard.BaseObjectDatastore;
 
 public abstract class LocalDatastoreTestCase
 {
 	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
-			new LocalDatastoreServiceTestConfig()); // .setDefaultHighRepJobPolicyUnappliedJobPercentage(1));
+			new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
 
 	public LocalDatastoreTestCase()
 	{
@@ -26,5 +27,6 @@ public abstract class LocalDatastoreTestCase
 	public void tearDownDatastore()
 	{
 		helper.tearDown();
+		BaseObjectDatastore.discardAllocatedIds();
 	}
 }
\ No newline at end of file
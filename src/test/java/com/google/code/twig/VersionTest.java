@@ -1,6 +1,8 @@
 package com.google.code.twig;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.Assert;
@@ -8,7 +10,9 @@ import junit.framework.Assert;
 import org.junit.Test;
 
 import com.google.appengine.api.datastore.Key;
+import com.google.code.twig.annotation.AnnotationObjectDatastore;
 import com.google.code.twig.annotation.Version;
+import com.google.code.twig.standard.TranslatorObjectDatastore;
 
 public class VersionTest extends LocalDatastoreTestCase
 {
@@ -87,4 +91,68 @@ public class VersionTest extends LocalDatastoreTestCase
 		Assert.assertEquals(2, entity2.getVersion());
 		Assert.assertEquals(2, datastore.version(entity2));
 	}
+	
+	@Test
+	public void updateAllChecksVersionsInOneGet()
+	{
+		ObjectDatastore datastore = ObjectDatastoreFactory.createObjectDatastore();
+		List<VersionedEntity> entities = Arrays.asList(new VersionedEntity(), new VersionedEntity(), new VersionedEntity());
+		Map<VersionedEntity, Key> stored = datastore.storeAll(entities);
+
+		// associated instances have not had their versions checked
+		TranslatorObjectDatastore other = (TranslatorObjectDatastore) ObjectDatastoreFactory.createObjectDatastore();
+		List<VersionedEntity> associated = new ArrayList<VersionedEntity>();
+		for (VersionedEntity entity : entities)
+		{
+			associated.add(other.associate(new VersionedEntity(), stored.get(entity), 1));
+		}
+		
+		int gets = other.getStatistics().getDatastoreGets();
+		other.updateAll(associated);
+		Assert.assertEquals(gets + 1, other.getStatistics().getDatastoreGets());
+		
+		for (VersionedEntity entity : associated)
+		{
+			Assert.assertEquals(2, other.version(entity));
+		}
+	}
+	
+	@Test
+	public void cascadingUpdateIsWrittenInTheCheckTransaction()
+	{
+		ObjectDatastore datastore = ObjectDatastoreFactory.createObjectDatastore();
+		Key stored = datastore.store(new VersionedEntity());
+
+		// the checked entity must not be left in the graph batch
+		ObjectDatastore other = new AnnotationObjectDatastore()
+		{
+			@Override
+			protected List<Key> flushEntities(Settings settings)
+			{
+				throw new IllegalStateException("Flushed checked entity");
+			}
+		};
+		VersionedEntity associated = other.associate(new VersionedEntity(), stored, 1);
+		other.update(associated, true);
+
+		VersionedEntity loaded = ObjectDatastoreFactory.createObjectDatastore().load(stored);
+		Assert.assertEquals(2, loaded.getVersion());
+	}
+	
+	@Test
+	public void checkedUpdateLaterCommitsWithoutGet()
+	{
+		ObjectDatastore datastore = ObjectDatastoreFactory.createObjectDatastore();
+		Key stored = datastore.store(new VersionedEntity());
+
+		TranslatorObjectDatastore other = new AnnotationObjectDatastore();
+		VersionedEntity associated = other.associate(new VersionedEntity(), stored, 1);
+		other.store().update(Boolean.TRUE).instance(associated).later();
+		
+		// the check transaction is not left open for later commands to join
+		Assert.assertTrue(other.getTransaction() == null || !other.getTransaction().isActive());
+
+		VersionedEntity reloaded = new AnnotationObjectDatastore().load(stored);
+		Assert.assertEquals(2, reloaded.getVersion());
+	}
 }
@@ -0,0 +1,192 @@
+package com.google.code.twig.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.code.twig.LocalDatastoreTestCase;
+import com.google.code.twig.ObjectDatastore;
+import com.google.code.twig.ObjectDatastoreFactory;
+import com.google.code.twig.annotation.AnnotationObjectDatastore;
+import com.google.code.twig.annotation.Id;
+
+public class UnitOfWorkFilterTest extends LocalDatastoreTestCase
+{
+	public static class Note
+	{
+		@Id long id;
+		String text;
+	}
+
+	private final UnitOfWorkFilter filter = new UnitOfWorkFilter();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private HttpServletRequest request;
+	private HttpServletResponse response;
+	private Key stored;
+
+	public UnitOfWorkFilterTest()
+	{
+		ObjectDatastoreFactory.register(Note.class);
+	}
+
+	@Before
+	public void setup()
+	{
+		request = stub(HttpServletRequest.class, null);
+		response = stub(HttpServletResponse.class, new ServletOutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+				body.write(b);
+			}
+		});
+	}
+
+	@Test
+	public void bodyIsSentAfterBatchIsStored() throws Exception
+	{
+		filter.doFilter(request, response, new FilterChain()
+		{
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+			{
+				store();
+				response.getWriter().print("stored");
+
+				// nothing is sent while the batch is pending
+				response.flushBuffer();
+				Assert.assertEquals(0, body.size());
+				Assert.assertNull(load());
+			}
+		});
+
+		Assert.assertEquals("stored", body.toString("UTF-8"));
+		Assert.assertEquals("note", load().text);
+	}
+
+	@Test
+	public void failedRequestDiscardsBatch() throws Exception
+	{
+		try
+		{
+			filter.doFilter(request, response, new FilterChain()
+			{
+				@Override
+				public void doFilter(ServletRequest request, ServletResponse response) throws IOException
+				{
+					store();
+					response.getWriter().print("stored");
+					throw new IllegalArgumentException("handler failed");
+				}
+			});
+			Assert.fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			Assert.assertEquals("handler failed", e.getMessage());
+		}
+
+		Assert.assertEquals(0, body.size());
+		Assert.assertNull(load());
+	}
+
+	@Test
+	public void failureAfterBatchWasStoppedIsNotHidden() throws Exception
+	{
+		try
+		{
+			filter.doFilter(request, response, new FilterChain()
+			{
+				@Override
+				public void doFilter(ServletRequest request, ServletResponse response) throws ServletException
+				{
+					store();
+					UnitOfWorkFilter.getDatastore().stopBatchMode();
+					throw new ServletException("handler failed");
+				}
+			});
+			Assert.fail();
+		}
+		catch (ServletException e)
+		{
+			Assert.assertEquals("handler failed", e.getMessage());
+		}
+
+		// the handler sent the batch itself
+		Assert.assertEquals("note", load().text);
+	}
+
+	@Test
+	public void requestMayStopBatch() throws Exception
+	{
+		filter.doFilter(request, response, new FilterChain()
+		{
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response)
+			{
+				store();
+				UnitOfWorkFilter.getDatastore().stopBatchMode();
+			}
+		});
+
+		Assert.assertEquals("note", load().text);
+	}
+
+	private void store()
+	{
+		Note note = new Note();
+		note.text = "note";
+		stored = UnitOfWorkFilter.getDatastore().store(note);
+	}
+
+	private Note load()
+	{
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		return datastore.load(stored);
+	}
+
+	// only the methods used by the filter return anything
+	private static <T> T stub(Class<T> type, final ServletOutputStream stream)
+	{
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if (method.getName().equals("getOutputStream"))
+				{
+					return stream;
+				}
+				else if (method.getName().equals("getCharacterEncoding"))
+				{
+					return "UTF-8";
+				}
+				else if (method.getReturnType() == boolean.class)
+				{
+					return false;
+				}
+				else if (method.getReturnType() == int.class)
+				{
+					return 0;
+				}
+				return null;
+			}
+		}));
+	}
+}
@@ -0,0 +1,65 @@
+package com.google.code.twig.standard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.code.twig.LocalDatastoreTestCase;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class PipelinedBatchesTest extends LocalDatastoreTestCase
+{
+	@Test
+	public void timedGetWaitsOnlyUntilTheTimeout() throws Exception
+	{
+		final SettableFuture<String> slow = SettableFuture.create();
+		PipelinedBatches<String, String> batches = new PipelinedBatches<String, String>(Arrays.asList("a", "b"), 1)
+		{
+			@Override
+			protected Future<String> send(String chunk)
+			{
+				return chunk.equals("a") ? Futures.immediateFuture(chunk) : slow;
+			}
+		};
+
+		try
+		{
+			batches.get(10, TimeUnit.MILLISECONDS);
+			Assert.fail("Should time out");
+		}
+		catch (TimeoutException e)
+		{
+		}
+
+		// the chunks that completed are kept
+		slow.set("b");
+		Assert.assertEquals(Arrays.asList("a", "b"), batches.get(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void partitionSplitsLargeEntities()
+	{
+		List<Entity> entities = new ArrayList<Entity>();
+		for (int i = 0; i < 6; i++)
+		{
+			Entity entity = new Entity("Large");
+			entity.setUnindexedProperty("text", new Text(Strings.repeat("x", 1024 * 1024)));
+			entities.add(entity);
+		}
+
+		List<List<Entity>> partitions = PipelinedBatches.partition(entities, 500);
+		Assert.assertEquals(2, partitions.size());
+		Assert.assertEquals(4, partitions.get(0).size());
+	}
+}
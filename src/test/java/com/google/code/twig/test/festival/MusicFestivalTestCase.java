@@ -15,6 +15,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -253,6 +254,25 @@ public class MusicFestivalTestCase extends LocalDatastoreTestCase
 		assertFalse(albums.hasNext());
 	}
 
+	@Test
+	public void testDeleteAllOfType()
+	{
+		// enough albums to need several delete batches
+		List<Album> albums = new ArrayList<Album>();
+		for (int i = 0; i < 1200; i++)
+		{
+			Album album = new Album();
+			album.name = "Album " + i;
+			albums.add(album);
+		}
+		datastore.storeAll(albums);
+
+		datastore.deleteAll(Album.class);
+
+		assertFalse(datastore.find(Album.class).hasNext());
+		assertNull(datastore.associatedKey(albums.get(0)));
+	}
+
 	@Test
 	public void testLists()
 	{
@@ -357,6 +377,25 @@ public class MusicFestivalTestCase extends LocalDatastoreTestCase
 		assertTrue(dbs.hasNext());
 	}
 
+	@Test
+	public void asyncLoadTest() throws ParseException, InterruptedException, ExecutionException
+	{
+		MusicFestival musicFestival = createFestival();
+		datastore.store(musicFestival);
+		datastore.disassociateAll();
+
+		Future<RockBand> fb = datastore.load().type(RockBand.class).id("Led Zeppelin").later();
+		Future<Map<Object, RockBand>> fbs = datastore.load().type(RockBand.class).ids(Arrays.asList("The Firm", "Led Zeppelin", "Missing")).later();
+
+		RockBand band = fb.get();
+		Map<Object, RockBand> bands = fbs.get();
+
+		assertEquals("Led Zeppelin", band.name);
+		assertEquals(2, bands.size());
+		assertEquals("The Firm", bands.keySet().iterator().next());
+		assertTrue(band == bands.get("Led Zeppelin"));
+	}
+
 	@Test
 	public void asyncStoreSingle() throws ParseException, InterruptedException, ExecutionException
 	{
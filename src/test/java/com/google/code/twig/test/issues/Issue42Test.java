@@ -1,6 +1,7 @@
 package com.google.code.twig.test.issues;
 
 import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
+import static com.google.appengine.api.datastore.Query.FilterOperator.GREATER_THAN;
 import static com.google.code.twig.test.issues.Issue42Test.Sex.FEMALE;
 import static com.google.code.twig.test.issues.Issue42Test.Sex.MALE;
 import static org.junit.Assert.assertEquals;
@@ -11,6 +12,7 @@ import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.code.twig.FindCommand.MergeFindCommand;
 import com.google.code.twig.FindCommand.MergeOperator;
@@ -18,8 +20,10 @@ import com.google.code.twig.FindCommand.RootFindCommand;
 import com.google.code.twig.LocalDatastoreTestCase;
 import com.google.code.twig.ObjectDatastoreFactory;
 import com.google.code.twig.annotation.AnnotationObjectDatastore;
+import com.google.code.twig.standard.MergedQueryResultIterator;
 import com.google.code.twig.test.issues.Issue39Test.City;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 
 public class Issue42Test extends LocalDatastoreTestCase
 {
@@ -75,6 +79,88 @@ public class Issue42Test extends LocalDatastoreTestCase
 		assertEquals(5, Iterators.size(results));
 	}
 
+	@Test
+	public void intersectedQueriesShouldOnlyReturnMatchesOfAllBranches()
+	{
+		ods.storeAll(getUserEntities());
+		ods.disassociateAll();
+		RootFindCommand<UserEntity> root = ods.find().type(UserEntity.class);
+		MergeFindCommand branch = root.merge(MergeOperator.AND);
+		branch.addChildCommand().addFilter("firstName", EQUAL, "A");
+		branch.addChildCommand().addFilter("gender", EQUAL, MALE.name());
+		root.addSort("lastName", SortDirection.DESCENDING);
+
+		List<UserEntity> results = root.returnAll().now();
+		
+		assertEquals(2, results.size());
+		assertEquals("C", results.get(0).lastName);
+		assertEquals("A", results.get(1).lastName);
+	}
+
+	@Test
+	public void intersectedQueriesShouldLimitSortedResults()
+	{
+		ods.storeAll(getUserEntities());
+		ods.disassociateAll();
+		RootFindCommand<UserEntity> root = ods.find().type(UserEntity.class);
+		MergeFindCommand branch = root.merge(MergeOperator.AND);
+		branch.addChildCommand().addFilter("firstName", EQUAL, "A");
+		branch.addChildCommand().addFilter("gender", EQUAL, MALE.name());
+		root.addSort("lastName", SortDirection.DESCENDING);
+		root.fetchMaximum(1);
+		
+		List<UserEntity> results = Lists.newArrayList(root.now());
+		
+		assertEquals(1, results.size());
+		assertEquals("C", results.get(0).lastName);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void intersectedQueriesShouldRejectInequalityFilters()
+	{
+		RootFindCommand<UserEntity> root = ods.find().type(UserEntity.class);
+		MergeFindCommand branch = root.merge(MergeOperator.AND);
+		branch.addChildCommand().addFilter("firstName", EQUAL, "A");
+		branch.addChildCommand().addFilter("lastName", GREATER_THAN, "A");
+		
+		root.now();
+	}
+
+	@Test
+	public void mergedQueriesShouldContinueFromCursor()
+	{
+		ods.storeAll(getUserEntities());
+		ods.disassociateAll();
+		
+		// inequality filter cannot be combined into a single query
+		RootFindCommand<UserEntity> root = ods.find().type(UserEntity.class).addSort("lastName");
+		MergeFindCommand branch = root.merge(MergeOperator.OR);
+		branch.addChildCommand().addFilter("firstName", EQUAL, "A");
+		branch.addChildCommand().addFilter("lastName", GREATER_THAN, "B");
+		
+		MergedQueryResultIterator<UserEntity> results = (MergedQueryResultIterator<UserEntity>) root.now();
+		assertEquals("A", results.next().lastName);
+		assertEquals("B", results.next().lastName);
+		String cursor = results.getWebSafeCursor();
+		
+		root = ods.find().type(UserEntity.class).addSort("lastName").continueFrom(cursor);
+		branch = root.merge(MergeOperator.OR);
+		branch.addChildCommand().addFilter("firstName", EQUAL, "A");
+		branch.addChildCommand().addFilter("lastName", GREATER_THAN, "B");
+		
+		List<UserEntity> rest = Lists.newArrayList(root.now());
+		assertEquals(2, rest.size());
+		assertEquals("C", rest.get(0).lastName);
+		assertEquals("C", rest.get(1).lastName);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void mergedCursorShouldRejectBadData()
+	{
+		// base64 of a java serialization stream header
+		ods.find().type(UserEntity.class).addSort("lastName").continueFrom("~rO0ABXNyABE");
+	}
+
 	private List<UserEntity> getUserEntities()
 	{
 		List<UserEntity> list = Arrays.asList(
@@ -32,6 +32,11 @@ public class Pilot
 		return this.name;
 	}
 	
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+	
 	public RocketShip getSpaceship()
 	{
 		return this.spaceship;
@@ -1,12 +1,23 @@
 package com.google.code.twig.test.unit;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import junit.framework.Assert;
 
 import org.junit.Test;
 
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
 import com.google.code.twig.LocalDatastoreTestCase;
 import com.google.code.twig.ObjectDatastore;
 import com.google.code.twig.ObjectDatastoreFactory;
@@ -92,4 +103,56 @@ public class DescendantsTest extends LocalDatastoreTestCase
 		
 		Assert.assertEquals(size, 3);
 	}
+	
+	@Test
+	public void findParentsLater() throws Exception
+	{
+		Granddad granddad = new Granddad("pops");
+		Mum mum1 = new Mum(granddad, 2);
+		Mum mum2 = new Mum(granddad, 3);
+		
+		ObjectDatastore datastore = ObjectDatastoreFactory.createObjectDatastore();
+		datastore.store(new Child(mum1, new Date()));
+		datastore.store(new Child(mum2, new Date()));
+		
+		datastore = ObjectDatastoreFactory.createObjectDatastore();
+		List<String> calls = recordCalls();
+		Future<Integer> count = datastore.find().type(Child.class).returnCount().later();
+		Future<Iterator<Mum>> mums = datastore.find().type(Child.class).<Mum>returnParents().later();
+		
+		// the count query and the parent get are sent before any result is got
+		Assert.assertEquals(Arrays.asList("RunQuery", "RunQuery", "Get"), calls);
+		
+		Assert.assertEquals(2, count.get().intValue());
+		Assert.assertEquals(2, Iterators.size(mums.get()));
+	}
+	
+	// names of the datastore calls made from now on
+	@SuppressWarnings("unchecked")
+	private static List<String> recordCalls()
+	{
+		final List<String> calls = new ArrayList<String>();
+		final Delegate<Environment> delegate = ApiProxy.getDelegate();
+		ApiProxy.setDelegate((Delegate<Environment>) Proxy.newProxyInstance(Delegate.class.getClassLoader(), 
+				new Class<?>[] { Delegate.class }, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+			{
+				if (method.getName().startsWith("make") && "datastore_v3".equals(args[1]))
+				{
+					calls.add((String) args[2]);
+				}
+				try
+				{
+					return method.invoke(delegate, args);
+				}
+				catch (InvocationTargetException e)
+				{
+					throw e.getCause();
+				}
+			}
+		}));
+		return calls;
+	}
 }
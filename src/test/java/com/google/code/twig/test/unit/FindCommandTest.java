@@ -1,18 +1,44 @@
 package com.google.code.twig.test.unit;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static com.google.code.twig.Parameter.param;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.code.twig.FindCommand.FetchMode;
+import com.google.code.twig.ChunkVisitor;
+import com.google.code.twig.FindCommand.MergeFindCommand;
+import com.google.code.twig.FindCommand.MergeOperator;
+import com.google.code.twig.FindCommand.RootFindCommand;
+import com.google.code.twig.FindTemplate;
 import com.google.code.twig.LocalDatastoreTestCase;
+import com.google.code.twig.Mutation;
+import com.google.code.twig.Restriction;
 import com.google.code.twig.ObjectDatastore;
 import com.google.code.twig.ObjectDatastoreFactory;
 import com.google.code.twig.annotation.AnnotationObjectDatastore;
+import com.google.code.twig.annotation.Id;
+import com.google.code.twig.standard.BaseObjectDatastore;
+import com.google.code.twig.standard.TranslatorObjectDatastore;
 import com.google.code.twig.test.space.Pilot;
 import com.google.code.twig.test.space.RocketShip;
 import com.google.code.twig.test.space.RocketShip.Planet;
@@ -26,6 +52,7 @@ public class FindCommandTest extends LocalDatastoreTestCase
 	{
 		ObjectDatastoreFactory.register(RocketShip.class);
 		ObjectDatastoreFactory.register(Pilot.class);
+		ObjectDatastoreFactory.register(Satellite.class);
 	}
 	
 	@Before
@@ -34,6 +61,14 @@ public class FindCommandTest extends LocalDatastoreTestCase
 		datastore = new AnnotationObjectDatastore();
 	}
 	
+	@After
+	public void teardown()
+	{
+		// cached kinds are registered for every datastore in the process
+		String kind = ((TranslatorObjectDatastore) datastore).getConfiguration().typeToKind(Satellite.class);
+		BaseObjectDatastore.unregisterCachedKind(kind);
+	}
+	
 	@Test
 	public void filterWithEnumValue()
 	{
@@ -101,4 +136,379 @@ public class FindCommandTest extends LocalDatastoreTestCase
 		
 		assertSame(neilArmstrong, shouldBeUri);
 	}
+	
+	@Test
+	public void mergedEqualityFiltersRunAsOneQuery()
+	{
+		datastore.store(new RocketShip(Planet.MARS));
+		datastore.store(new RocketShip(Planet.VENUS));
+		datastore.store(new RocketShip(Planet.MERCURY));
+		
+		RootFindCommand<RocketShip> find = datastore.find().type(RocketShip.class);
+		MergeFindCommand merge = find.merge(MergeOperator.OR);
+		merge.addChildCommand().addFilter("destination", FilterOperator.EQUAL, Planet.MARS);
+		merge.addChildCommand().addFilter("destination", FilterOperator.EQUAL, Planet.VENUS);
+		
+		// counting used to fail with more than one query
+		assertEquals(2, find.returnCount().now().intValue());
+		assertEquals(2, find.returnAll().now().size());
+	}
+	
+	@Test
+	public void mergedFindReadsBranchesOnlyWhenIterated()
+	{
+		datastore.store(new RocketShip(Planet.MARS));
+		datastore.store(new RocketShip(Planet.VENUS));
+		datastore.store(new RocketShip(Planet.MERCURY));
+		
+		final List<Entity> read = new ArrayList<Entity>();
+		RootFindCommand<RocketShip> find = datastore.find().type(RocketShip.class).addSort("destination");
+		find.restrictEntities(new Restriction<Entity>()
+		{
+			@Override
+			public boolean allow(Entity candidate)
+			{
+				read.add(candidate);
+				return true;
+			}
+		});
+		
+		// sorted branches with an inequality are merged on the client
+		MergeFindCommand merge = find.merge(MergeOperator.OR);
+		merge.addChildCommand().addFilter("destination", FilterOperator.EQUAL, Planet.MARS);
+		merge.addChildCommand().addFilter("destination", FilterOperator.GREATER_THAN_OR_EQUAL, Planet.VENUS);
+		
+		QueryResultIterator<RocketShip> results = find.now();
+		assertTrue(read.isEmpty());
+		
+		List<Planet> destinations = new ArrayList<Planet>();
+		while (results.hasNext())
+		{
+			destinations.add(results.next().getDestination());
+		}
+		
+		assertEquals(2, read.size());
+		assertEquals(Arrays.asList(Planet.MARS, Planet.VENUS), destinations);
+	}
+	
+	@Test
+	public void largeInFilterIsSplit()
+	{
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 75; i++)
+		{
+			String name = "Pilot " + i;
+			datastore.store(new Pilot(name, null));
+			if (i % 5 != 0)
+			{
+				names.add(name);
+			}
+		}
+		names.add("Pilot 1");
+		
+		List<Pilot> unsorted = datastore.find()
+			.type(Pilot.class)
+			.addFilter("name", FilterOperator.IN, names)
+			.returnAll()
+			.now();
+		
+		assertEquals(60, unsorted.size());
+		
+		List<Pilot> sorted = datastore.find()
+			.type(Pilot.class)
+			.addFilter("name", FilterOperator.IN, names)
+			.addSort("name")
+			.returnAll()
+			.now();
+		
+		assertEquals(60, sorted.size());
+		assertEquals("Pilot 1", sorted.get(0).getName());
+		assertEquals("Pilot 9", sorted.get(59).getName());
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void projectionCannotSplitInFilter()
+	{
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 75; i++)
+		{
+			names.add("Pilot " + i);
+		}
+		
+		datastore.find()
+			.type(Pilot.class)
+			.project("name")
+			.addFilter("name", FilterOperator.IN, names)
+			.returnAll()
+			.now();
+	}
+	
+	public static class Destination
+	{
+		private Planet destination;
+	}
+	
+	@Test
+	public void projectedFieldsAreReadFromIndex()
+	{
+		datastore.store(new RocketShip(Planet.MARS));
+		datastore.store(new RocketShip(Planet.VENUS));
+		datastore.disassociateAll();
+		
+		List<RocketShip> ships = datastore.find()
+			.type(RocketShip.class)
+			.project("destination")
+			.addSort("destination")
+			.returnAll()
+			.now();
+		
+		assertEquals(2, ships.size());
+		assertEquals(Planet.MARS, ships.get(0).getDestination());
+		
+		// partial instances must be activated before they can be updated
+		TranslatorObjectDatastore translator = (TranslatorObjectDatastore) datastore;
+		assertFalse(translator.isActivated(ships.get(0)));
+		datastore.refresh(ships.get(0));
+		assertTrue(translator.isActivated(ships.get(0)));
+		
+		List<Destination> destinations = datastore.find()
+			.type(RocketShip.class)
+			.project(Destination.class, "destination")
+			.addSort("destination")
+			.returnAll()
+			.now();
+		
+		assertEquals(Planet.VENUS, destinations.get(1).destination);
+		assertNull(datastore.associatedKey(destinations.get(1)));
+	}
+	
+	@Test
+	public void cacheFetchModeContinuesFromCursor()
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			datastore.store(new Pilot("Pilot " + i, null));
+		}
+		datastore.disassociateAll();
+		
+		QueryResultIterator<Pilot> first = datastore.find()
+			.type(Pilot.class)
+			.addSort("name")
+			.fetchMode(FetchMode.CACHE)
+			.fetchNextBy(3)
+			.now();
+		
+		assertEquals("Pilot 0", first.next().getName());
+		assertEquals("Pilot 1", first.next().getName());
+		assertTrue(first.hasNext());
+		
+		List<Pilot> rest = Lists.newArrayList(datastore.find()
+			.type(Pilot.class)
+			.addSort("name")
+			.fetchMode(FetchMode.CACHE)
+			.continueFrom(first.getCursor())
+			.now());
+		
+		assertEquals(3, rest.size());
+		assertEquals("Pilot 2", rest.get(0).getName());
+	}
+	
+	public static class Satellite
+	{
+		@Id
+		private long id;
+		private String name;
+	}
+	
+	@Test
+	public void queryResultsOfCachedKindsAreCached()
+	{
+		TranslatorObjectDatastore translator = (TranslatorObjectDatastore) datastore;
+		String kind = translator.getConfiguration().typeToKind(Satellite.class);
+		BaseObjectDatastore.registerCachedKind(kind, 0, 100, true, false);
+		
+		// put the entity directly so it is not already in the cache
+		Entity entity = new Entity(kind);
+		entity.setProperty("name", "Sputnik");
+		Key key = DatastoreServiceFactory.getDatastoreService().put(entity);
+		
+		assertEquals(1, datastore.find().type(Satellite.class).returnAll().now().size());
+		datastore.disassociateAll();
+		
+		int gets = translator.getStatistics().getDatastoreGets();
+		Satellite loaded = datastore.load(Satellite.class, key.getId());
+		assertEquals("Sputnik", loaded.name);
+		assertEquals(gets, translator.getStatistics().getDatastoreGets());
+	}
+	
+	@Test
+	public void autoFetchModeQueriesColdKindDirectly()
+	{
+		TranslatorObjectDatastore translator = (TranslatorObjectDatastore) datastore;
+		String kind = translator.getConfiguration().typeToKind(Satellite.class);
+		BaseObjectDatastore.registerCachedKind(kind, 0, 100, true, false);
+		
+		Entity entity = new Entity(kind);
+		entity.setProperty("name", "Sputnik");
+		DatastoreServiceFactory.getDatastoreService().put(entity);
+		
+		// no reads were sampled so the cache would probably miss
+		int gets = translator.getStatistics().getDatastoreGets();
+		assertEquals(1, datastore.find().type(Satellite.class).fetchMode(FetchMode.AUTO).returnAll().now().size());
+		assertEquals(gets, translator.getStatistics().getDatastoreGets());
+	}
+	
+	@Test
+	public void preparedTemplateBindsParameters()
+	{
+		datastore.store(new RocketShip(Planet.MARS));
+		datastore.store(new RocketShip(Planet.VENUS));
+		datastore.store(new RocketShip(Planet.VENUS));
+		
+		FindTemplate<RocketShip> template = datastore.find()
+			.type(RocketShip.class)
+			.addFilter("destination", FilterOperator.EQUAL, param("planet"))
+			.prepare();
+		
+		// templates can be used by any datastore
+		ObjectDatastore other = new AnnotationObjectDatastore();
+		assertEquals(2, template.bind(other, "planet", Planet.VENUS).returnAll().now().size());
+		assertEquals(1, template.bind(datastore, "planet", Planet.MARS).returnCount().now().intValue());
+		
+		// each bound command can add its own sorts
+		FindTemplate<RocketShip> sorted = datastore.find()
+			.type(RocketShip.class)
+			.addSort("destination")
+			.prepare();
+		Map<String, Object> none = Collections.emptyMap();
+		assertEquals(3, sorted.bind(datastore, none).addSort(Entity.KEY_RESERVED_PROPERTY).returnAll().now().size());
+		assertEquals(3, sorted.bind(datastore, none).returnAll().now().size());
+	}
+	
+	@Test
+	public void forEachVisitsChunksWithCursors()
+	{
+		for (int i = 0; i < 7; i++)
+		{
+			datastore.store(new Pilot("Pilot " + i, null));
+		}
+		datastore.disassociateAll();
+		
+		final List<Integer> sizes = new ArrayList<Integer>();
+		final List<Pilot> visited = new ArrayList<Pilot>();
+		datastore.find().type(Pilot.class).addSort("name").forEach(3, new ChunkVisitor<Pilot>()
+		{
+			@Override
+			public boolean visit(List<Pilot> chunk, String cursor)
+			{
+				sizes.add(chunk.size());
+				visited.addAll(chunk);
+				return true;
+			}
+		});
+		
+		assertEquals(Lists.newArrayList(3, 3, 1), sizes);
+		assertNull(datastore.associatedKey(visited.get(0)));
+		
+		final List<String> cursors = new ArrayList<String>();
+		datastore.find().type(Pilot.class).addSort("name").forEach(3, new ChunkVisitor<Pilot>()
+		{
+			@Override
+			public boolean visit(List<Pilot> chunk, String cursor)
+			{
+				cursors.add(cursor);
+				return false;
+			}
+		});
+		
+		List<Pilot> rest = datastore.find()
+			.type(Pilot.class)
+			.addSort("name")
+			.continueFrom(cursors.get(0))
+			.returnAll()
+			.now();
+		
+		assertEquals(1, cursors.size());
+		assertEquals(4, rest.size());
+		assertEquals("Pilot 3", rest.get(0).getName());
+	}
+	
+	@Test
+	public void forEachKeepsInstancesHeldBefore()
+	{
+		Key heldKey = datastore.store(new Pilot("Held", new RocketShip(Planet.MARS)));
+		for (int i = 0; i < 4; i++)
+		{
+			datastore.store(new Pilot("Pilot " + i, new RocketShip(Planet.VENUS)));
+		}
+		datastore.disassociateAll();
+		
+		Pilot held = datastore.load(heldKey);
+		final List<Pilot> visited = new ArrayList<Pilot>();
+		datastore.find().type(Pilot.class).forEach(2, new ChunkVisitor<Pilot>()
+		{
+			@Override
+			public boolean visit(List<Pilot> chunk, String cursor)
+			{
+				visited.addAll(chunk);
+				return true;
+			}
+		});
+		
+		// the chunks released their own pilots and spaceships
+		assertEquals(5, visited.size());
+		assertTrue(visited.remove(held));
+		for (Pilot pilot : visited)
+		{
+			assertNull(datastore.associatedKey(pilot));
+			assertNull(datastore.associatedKey(pilot.getSpaceship()));
+		}
+		
+		assertEquals(heldKey, datastore.associatedKey(held));
+		assertNotNull(datastore.associatedKey(held.getSpaceship()));
+		held.setName("Still held");
+		datastore.update(held);
+	}
+	
+	@Test
+	public void mutateUpdatesChangedResultsInChunks()
+	{
+		for (int i = 0; i < 12; i++)
+		{
+			datastore.store(new Pilot("Pilot " + i, null));
+		}
+		datastore.disassociateAll();
+		
+		final List<String> checkpoints = new ArrayList<String>();
+		int updated = datastore.find().type(Pilot.class).mutate(5, new Mutation<Pilot>()
+		{
+			@Override
+			public boolean mutate(Pilot pilot)
+			{
+				if (pilot.getName().endsWith("1"))
+				{
+					pilot.setName("Captain " + pilot.getName());
+					return true;
+				}
+				return false;
+			}
+			
+			@Override
+			public void checkpoint(String cursor)
+			{
+				checkpoints.add(cursor);
+			}
+		});
+		
+		assertEquals(2, updated);
+		assertEquals(3, checkpoints.size());
+		
+		datastore.disassociateAll();
+		assertEquals(2, datastore.find()
+			.type(Pilot.class)
+			.addFilter("name", FilterOperator.IN, Lists.newArrayList("Captain Pilot 1", "Captain Pilot 11"))
+			.returnCount()
+			.now()
+			.intValue());
+	}
 }
@@ -0,0 +1,132 @@
+package com.google.code.twig.test.unit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.code.twig.LocalDatastoreTestCase;
+import com.google.code.twig.ObjectDatastore;
+import com.google.code.twig.ObjectDatastoreFactory;
+import com.google.code.twig.ScanVisitor;
+import com.google.code.twig.annotation.AnnotationObjectDatastore;
+import com.google.code.twig.standard.KindScan;
+import com.google.code.twig.test.space.Pilot;
+
+public class KindScanTest extends LocalDatastoreTestCase
+{
+	private ExecutorService executor;
+
+	public KindScanTest()
+	{
+		ObjectDatastoreFactory.register(Pilot.class);
+	}
+
+	@Before
+	public void setup()
+	{
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		for (int i = 0; i < 25; i++)
+		{
+			datastore.store(new Pilot("Pilot " + i, null));
+		}
+
+		// worker threads need the test environment to call the datastore
+		final Environment environment = ApiProxy.getCurrentEnvironment();
+		executor = Executors.newFixedThreadPool(2, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						runnable.run();
+					}
+				});
+			}
+		});
+	}
+
+	@After
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void scanVisitsEveryInstance()
+	{
+		final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+		new KindScan<Pilot>(Pilot.class, "all").shards(4).chunkSize(5).run(executor, new ScanVisitor<Pilot>()
+		{
+			@Override
+			public void visit(List<Pilot> chunk, ObjectDatastore datastore)
+			{
+				for (Pilot pilot : chunk)
+				{
+					names.add(pilot.getName());
+				}
+			}
+		});
+
+		assertEquals(25, names.size());
+	}
+
+	@Test
+	public void failedScanResumesFromCheckpoint()
+	{
+		KindScan<Pilot> scan = new KindScan<Pilot>(Pilot.class, "resumed").shards(1).chunkSize(5);
+		try
+		{
+			scan.run(executor, new ScanVisitor<Pilot>()
+			{
+				private int chunks;
+
+				@Override
+				public void visit(List<Pilot> chunk, ObjectDatastore datastore)
+				{
+					if (++chunks == 3)
+					{
+						throw new IllegalStateException("Crashed");
+					}
+				}
+			});
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+		}
+
+		final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+		scan.run(executor, new ScanVisitor<Pilot>()
+		{
+			@Override
+			public void visit(List<Pilot> chunk, ObjectDatastore datastore)
+			{
+				for (Pilot pilot : chunk)
+				{
+					names.add(pilot.getName());
+				}
+			}
+		});
+
+		// the first two chunks were saved before the crash
+		assertEquals(15, names.size());
+	}
+}
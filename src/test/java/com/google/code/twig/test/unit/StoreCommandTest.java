@@ -1,16 +1,39 @@
 package com.google.code.twig.test.unit;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.code.twig.LocalDatastoreTestCase;
 import com.google.code.twig.ObjectDatastore;
+import com.google.code.twig.LoadCommand.CacheMode;
 import com.google.code.twig.ObjectDatastoreFactory;
+import com.google.code.twig.Settings;
 import com.google.code.twig.annotation.AnnotationObjectDatastore;
+import com.google.code.twig.annotation.Backup;
 import com.google.code.twig.annotation.Child;
 import com.google.code.twig.annotation.Entity;
 import com.google.code.twig.annotation.Id;
+import com.google.code.twig.standard.BaseObjectDatastore;
+import com.google.code.twig.standard.TranslatorObjectDatastore;
 
 public class StoreCommandTest extends LocalDatastoreTestCase
 {
@@ -20,6 +43,10 @@ public class StoreCommandTest extends LocalDatastoreTestCase
 	{
 		ObjectDatastoreFactory.register(ChildClass.class);
 		ObjectDatastoreFactory.register(ParentClass.class);
+		ObjectDatastoreFactory.register(Order.class);
+		ObjectDatastoreFactory.register(LineItem.class);
+		ObjectDatastoreFactory.register(Document.class);
+		ObjectDatastoreFactory.register(Account.class);
 	}
 	
 	@Before
@@ -28,6 +55,30 @@ public class StoreCommandTest extends LocalDatastoreTestCase
 		datastore = new AnnotationObjectDatastore();
 	}
 	
+	@After
+	public void teardown()
+	{
+		// cached kinds are registered for every datastore in the process
+		BaseObjectDatastore.unregisterCachedKind(((TranslatorObjectDatastore) datastore).getConfiguration().typeToKind(Account.class));
+		BaseObjectDatastore.unregisterCachedKind(RAW_KIND);
+	}
+	
+	private static final String RAW_KIND = "Raw";
+	
+	// reads and writes entities with the given cache mode
+	public static class RawDatastore extends AnnotationObjectDatastore
+	{
+		Key put(com.google.appengine.api.datastore.Entity entity, CacheMode mode)
+		{
+			return servicePut(entity, Settings.copy(getDefaultSettings()).cacheMode(mode).build());
+		}
+		
+		com.google.appengine.api.datastore.Entity get(Key key, CacheMode mode) throws EntityNotFoundException
+		{
+			return serviceGet(key, Settings.copy(getDefaultSettings()).cacheMode(mode).build());
+		}
+	}
+	
 	@Entity(kind="pc", allocateIdsBy=10)
 	public static class ParentClass
 	{
@@ -43,12 +94,40 @@ public class StoreCommandTest extends LocalDatastoreTestCase
 	{
 		@Id long id;
 		String name;
+		ChildClass()
+		{
+		}
 		public ChildClass(String string)
 		{
 			this.name = string;
 		}
 	}
 	
+	public static class Order
+	{
+		@Id long id;
+		List<LineItem> items = new ArrayList<LineItem>();
+	}
+	
+	public static class LineItem
+	{
+		@Id long id;
+		String product;
+	}
+	
+	@Backup
+	public static class Document
+	{
+		@Id long id;
+		String text;
+	}
+	
+	public static class Account
+	{
+		@Id long id;
+		long balance;
+	}
+	
 	@Test
 	public void allocateIdsToParent()
 	{
@@ -59,6 +138,29 @@ public class StoreCommandTest extends LocalDatastoreTestCase
 		datastore.store(parent);
 	}
 	
+	@Test
+	public void allocatedIdsAreSharedByDatastores()
+	{
+		ParentClass first = new ParentClass(null);
+		datastore.store(first);
+		
+		// a new datastore continues from the same allocated range
+		ParentClass second = new ParentClass(null);
+		new AnnotationObjectDatastore().store(second);
+		Assert.assertEquals(first.id + 1, second.id);
+		
+		// more than two ranges need the next range to be allocated
+		Set<Long> ids = new HashSet<Long>();
+		ids.add(first.id);
+		ids.add(second.id);
+		for (int i = 0; i < 25; i++)
+		{
+			ParentClass next = new ParentClass(null);
+			datastore.store(next);
+			Assert.assertTrue(ids.add(next.id));
+		}
+	}
+	
 	@Test 
 	public void batchStoreAndUpdate()
 	{
@@ -77,4 +179,401 @@ public class StoreCommandTest extends LocalDatastoreTestCase
 		Assert.assertTrue(child1.id != 0);
 	}
 	
+	@Test
+	public void batchStoreWithAllocatedIds()
+	{
+		datastore.startBatchMode(true);
+		
+		List<ChildClass> children = new ArrayList<ChildClass>();
+		for (int i = 0; i < 20; i++)
+		{
+			ChildClass child = new ChildClass("child" + i);
+			Key key = datastore.store(child);
+			
+			// the key is complete before the batch is flushed
+			Assert.assertTrue(key.isComplete());
+			Assert.assertEquals(key.getId(), child.id);
+			children.add(child);
+		}
+		
+		datastore.stopBatchMode();
+		
+		ObjectDatastore other = new AnnotationObjectDatastore();
+		for (ChildClass child : children)
+		{
+			ChildClass loaded = other.load(ChildClass.class, child.id);
+			Assert.assertEquals(child.name, loaded.name);
+		}
+	}
+	
+	@Test
+	public void discardBatch()
+	{
+		datastore.startBatchMode(true);
+		ChildClass child = new ChildClass("discarded");
+		datastore.store(child);
+		datastore.discardBatchedOperations();
+		
+		ObjectDatastore other = new AnnotationObjectDatastore();
+		Assert.assertNull(other.load(ChildClass.class, child.id));
+	}
+	
+	@Test
+	public void storeAndLoadInSeveralChunks()
+	{
+		// more than fit in one datastore call
+		List<ChildClass> children = new ArrayList<ChildClass>();
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 1200; i++)
+		{
+			children.add(new ChildClass("child" + i));
+		}
+		
+		Map<ChildClass, Key> keys = datastore.storeAll(children);
+		for (ChildClass child : children)
+		{
+			Assert.assertEquals(child.id, keys.get(child).getId());
+			ids.add(child.id);
+		}
+		
+		ObjectDatastore other = new AnnotationObjectDatastore();
+		Map<?, ChildClass> loaded = other.loadAll(ChildClass.class, ids);
+		Assert.assertEquals(children.size(), loaded.size());
+		for (ChildClass child : children)
+		{
+			Assert.assertEquals(child.name, loaded.get(child.id).name);
+		}
+	}
+	
+	@Test
+	public void graphIsStoredInOnePut()
+	{
+		Order order = new Order();
+		for (int i = 0; i < 30; i++)
+		{
+			LineItem item = new LineItem();
+			item.product = "product" + i;
+			order.items.add(item);
+		}
+		
+		int puts = ((TranslatorObjectDatastore) datastore).getStatistics().getDatastorePuts();
+		Key key = datastore.store().instance(order).graph().now();
+		Assert.assertEquals(puts + 1, ((TranslatorObjectDatastore) datastore).getStatistics().getDatastorePuts());
+		Assert.assertTrue(key.isComplete());
+		
+		ObjectDatastore other = new AnnotationObjectDatastore();
+		Order loaded = other.load(Order.class, order.id);
+		Assert.assertEquals(30, loaded.items.size());
+		Assert.assertEquals("product29", loaded.items.get(29).product);
+	}
+	
+	@Test
+	public void graphFailsWhenTransactionCannotWriteAllGroups()
+	{
+		Order order = new Order();
+		for (int i = 0; i < 5; i++)
+		{
+			LineItem item = new LineItem();
+			item.product = "product" + i;
+			order.items.add(item);
+		}
+		
+		int puts = ((TranslatorObjectDatastore) datastore).getStatistics().getDatastorePuts();
+		Transaction txn = datastore.beginTransaction();
+		try
+		{
+			datastore.store().instance(order).graph().now();
+			Assert.fail();
+		}
+		catch (IllegalStateException e)
+		{
+			txn.rollback();
+		}
+		
+		// nothing was sent
+		Assert.assertEquals(puts, ((TranslatorObjectDatastore) datastore).getStatistics().getDatastorePuts());
+		Assert.assertEquals(0, DatastoreServiceFactory.getDatastoreService().prepare(new Query()).countEntities(FetchOptions.Builder.withDefaults()));
+	}
+	
+	@Test
+	public void updateOnlyPutsChangedInstances()
+	{
+		Order order = new Order();
+		for (int i = 0; i < 30; i++)
+		{
+			LineItem item = new LineItem();
+			item.product = "product" + i;
+			order.items.add(item);
+		}
+		datastore.store().instance(order).graph().now();
+		
+		TranslatorObjectDatastore dirty = new AnnotationObjectDatastore(Settings.builder().dirtyChecking(true).build());
+		Order loaded = dirty.load(Order.class, order.id);
+		
+		int puts = dirty.getStatistics().getDatastorePuts();
+		dirty.update(loaded, true);
+		Assert.assertEquals(puts, dirty.getStatistics().getDatastorePuts());
+		
+		// only the changed leaf is put
+		loaded.items.get(7).product = "changed";
+		dirty.update(loaded, true);
+		Assert.assertEquals(puts + 1, dirty.getStatistics().getDatastorePuts());
+		
+		// the stored state is now the snapshot
+		dirty.update(loaded, true);
+		Assert.assertEquals(puts + 1, dirty.getStatistics().getDatastorePuts());
+		
+		LineItem reloaded = new AnnotationObjectDatastore().load(LineItem.class, loaded.items.get(7).id);
+		Assert.assertEquals("changed", reloaded.product);
+	}
+	
+	@Test
+	public void rolledBackUpdateIsNotTakenAsStored()
+	{
+		LineItem item = new LineItem();
+		item.product = "a";
+		datastore.store(item);
+		
+		TranslatorObjectDatastore dirty = new AnnotationObjectDatastore(Settings.builder().dirtyChecking(true).build());
+		LineItem loaded = dirty.load(LineItem.class, item.id);
+		
+		Transaction txn = dirty.beginTransaction();
+		loaded.product = "b";
+		dirty.update(loaded);
+		txn.rollback();
+		
+		// the instance still differs from the stored entity
+		dirty.update(loaded);
+		
+		LineItem reloaded = new AnnotationObjectDatastore().load(LineItem.class, item.id);
+		Assert.assertEquals("b", reloaded.product);
+	}
+	
+	@Test
+	public void updateAllBacksUpInOnePut()
+	{
+		List<Document> documents = new ArrayList<Document>();
+		for (int i = 0; i < 5; i++)
+		{
+			Document document = new Document();
+			document.text = "draft" + i;
+			documents.add(document);
+		}
+		datastore.storeAll(documents);
+		
+		for (Document document : documents)
+		{
+			document.text = "final";
+		}
+		
+		TranslatorObjectDatastore translator = (TranslatorObjectDatastore) datastore;
+		int puts = translator.getStatistics().getDatastorePuts();
+		datastore.updateAll(documents);
+		
+		// one put for the backups and one for the documents
+		Assert.assertEquals(puts + 2, translator.getStatistics().getDatastorePuts());
+		
+		Query query = new Query("backup");
+		List<com.google.appengine.api.datastore.Entity> backups = DatastoreServiceFactory.getDatastoreService()
+				.prepare(query).asList(FetchOptions.Builder.withDefaults());
+		Assert.assertEquals(5, backups.size());
+		Assert.assertTrue(backups.get(0).getProperty("text").toString().startsWith("draft"));
+	}
+	
+	@Test
+	public void asyncUpdateBacksUp() throws Exception
+	{
+		Document document = new Document();
+		document.text = "draft";
+		datastore.store(document);
+		
+		document.text = "final";
+		((TranslatorObjectDatastore) datastore).store().update(true).instances(Collections.singletonList(document)).later().get();
+		
+		Query query = new Query("backup");
+		List<com.google.appengine.api.datastore.Entity> backups = DatastoreServiceFactory.getDatastoreService()
+				.prepare(query).asList(FetchOptions.Builder.withDefaults());
+		Assert.assertEquals(1, backups.size());
+		Assert.assertEquals("draft", backups.get(0).getProperty("text"));
+		Assert.assertEquals("final", new AnnotationObjectDatastore().load(Document.class, document.id).text);
+	}
+	
+	@Test
+	public void transactionWritesAreSentAtCommit()
+	{
+		final Order order = new Order();
+		datastore.store(order);
+		
+		final LineItem removed = new LineItem();
+		datastore.store().instance(removed).parent(order).now();
+		final Key removedKey = datastore.associatedKey(removed);
+		
+		final TranslatorObjectDatastore translator = (TranslatorObjectDatastore) datastore;
+		int puts = translator.getStatistics().getDatastorePuts();
+		
+		final List<LineItem> items = new ArrayList<LineItem>();
+		datastore.transact(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < 15; i++)
+				{
+					LineItem item = new LineItem();
+					item.product = "product" + i;
+					Assert.assertTrue(datastore.store().instance(item).parent(order).now().isComplete());
+					items.add(item);
+				}
+				
+				// reads in the transaction see its own writes
+				datastore.delete(removed);
+				Assert.assertNull(datastore.load(removedKey));
+				
+				Key written = datastore.associatedKey(items.get(3));
+				datastore.disassociate(items.get(3));
+				Assert.assertEquals("product3", datastore.<LineItem>load(written).product);
+			}
+		});
+		
+		Assert.assertEquals(puts + 1, translator.getStatistics().getDatastorePuts());
+		
+		ObjectDatastore other = new AnnotationObjectDatastore();
+		Assert.assertNull(other.load(removedKey));
+		Assert.assertEquals(15, datastore.find().type(LineItem.class).ancestor(order).returnCount().now().intValue());
+	}
+	
+	@Test
+	public void contendedTransactionIsRetried()
+	{
+		final Order order = new Order();
+		datastore.store(order);
+		final Key key = datastore.associatedKey(order);
+		
+		Settings settings = Settings.builder()
+				.transactionAttempts(3)
+				.transactionBackoff(1, TimeUnit.MILLISECONDS)
+				.build();
+		final ObjectDatastore retrying = new AnnotationObjectDatastore(settings);
+		
+		String kind = ((TranslatorObjectDatastore) datastore).getConfiguration().typeToKind(LineItem.class);
+		int retries = BaseObjectDatastore.getContention(kind).getRetries();
+		
+		// the kind that was only read is blamed too
+		String readKind = ((TranslatorObjectDatastore) datastore).getConfiguration().typeToKind(Order.class);
+		int readRetries = BaseObjectDatastore.getContention(readKind).getRetries();
+		
+		final int[] attempts = new int[1];
+		retrying.transact(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				attempts[0]++;
+				Order loaded = retrying.load(key);
+				
+				// another session changes the entity group during the first attempt
+				if (attempts[0] == 1)
+				{
+					datastore.update(order);
+				}
+				
+				LineItem item = new LineItem();
+				item.product = "attempt" + attempts[0];
+				retrying.store().instance(item).parent(loaded).now();
+			}
+		});
+		
+		Assert.assertEquals(2, attempts[0]);
+		Assert.assertEquals(retries + 1, BaseObjectDatastore.getContention(kind).getRetries());
+		Assert.assertEquals(readRetries + 1, BaseObjectDatastore.getContention(readKind).getRetries());
+		Assert.assertEquals(1, datastore.find().type(LineItem.class).ancestor(order).returnCount().now().intValue());
+	}
+	
+	@Test
+	public void concurrentModificationInWorkIsNotRetried()
+	{
+		Settings settings = Settings.builder()
+				.transactionAttempts(3)
+				.transactionBackoff(1, TimeUnit.MILLISECONDS)
+				.build();
+		ObjectDatastore retrying = new AnnotationObjectDatastore(settings);
+		
+		final int[] attempts = new int[1];
+		try
+		{
+			retrying.transact(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					attempts[0]++;
+					
+					// a bug in the work is not contention
+					List<String> list = new ArrayList<String>(Arrays.asList("a", "b", "c"));
+					for (String item : list)
+					{
+						list.remove(item);
+					}
+				}
+			});
+			Assert.fail();
+		}
+		catch (ConcurrentModificationException e)
+		{
+			Assert.assertEquals(1, attempts[0]);
+		}
+	}
+	
+	@Test
+	public void committedPutIsCachedWithItsOwnMode() throws EntityNotFoundException
+	{
+		// not cached by the default automatic mode
+		BaseObjectDatastore.registerCachedKind(RAW_KIND, 0, 100, false, false);
+		
+		RawDatastore writer = new RawDatastore();
+		Transaction txn = writer.beginTransaction();
+		writer.put(new com.google.appengine.api.datastore.Entity(RAW_KIND, "cached"), CacheMode.ON);
+		txn.commit();
+		
+		RawDatastore reader = new RawDatastore();
+		int gets = reader.getStatistics().getDatastoreGets();
+		Assert.assertNotNull(reader.get(KeyFactory.createKey(RAW_KIND, "cached"), CacheMode.ON));
+		Assert.assertEquals(gets, reader.getStatistics().getDatastoreGets());
+	}
+	
+	@Test
+	public void committedTransactionUpdatesCache()
+	{
+		String kind = ((TranslatorObjectDatastore) datastore).getConfiguration().typeToKind(Account.class);
+		BaseObjectDatastore.registerCachedKind(kind, 0, 100, true, false);
+		
+		Account account = new Account();
+		account.balance = 10;
+		final Key key = datastore.store(account);
+		
+		final ObjectDatastore other = new AnnotationObjectDatastore();
+		other.transact(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Account loaded = other.load(key);
+				loaded.balance = 20;
+				other.update(loaded);
+			}
+		});
+		
+		// a rolled back change is not cached
+		ObjectDatastore rolledBack = new AnnotationObjectDatastore();
+		Account changed = rolledBack.load(key);
+		Transaction txn = rolledBack.beginTransaction();
+		changed.balance = 30;
+		rolledBack.update(changed);
+		txn.rollback();
+		
+		TranslatorObjectDatastore reader = new AnnotationObjectDatastore();
+		int gets = reader.getStatistics().getDatastoreGets();
+		Assert.assertEquals(20, reader.<Account>load(key).balance);
+		Assert.assertEquals(gets, reader.getStatistics().getDatastoreGets());
+	}
 }